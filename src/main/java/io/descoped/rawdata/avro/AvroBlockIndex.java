@@ -0,0 +1,319 @@
+package io.descoped.rawdata.avro;
+
+import de.huxhorn.sulky.ulid.ULID;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableInput;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offset, id and position of first record, and record count of every block in an Avro file. Used to position
+ * readers at the block that contains a given timestamp, rather than decoding all records that precede it in the file.
+ * <p>
+ * Producers store the index next to the file, see {@link RawdataAvroFile#writeBlockIndex(byte[])}, with offsets
+ * relative to the first block and a Bloom filter of the positions in each block. For files without a stored index,
+ * the index is built by reading the header and the first record of every block, skipping the rest of the block, and
+ * has no position filters.
+ */
+class AvroBlockIndex {
+
+    static final int FORMAT_VERSION = 1;
+    static final int BLOCK_PREFIX_BYTES = 512; // read from the start of every block, enough for most first records
+
+    final long[] offsets;
+    final ULID.Value[] firstIds;
+    final String[] firstPositions;
+    final long[] counts;
+    final BloomFilter[] positionFilters; // null if not known
+    final boolean sorted;
+
+    AvroBlockIndex(long[] offsets, ULID.Value[] firstIds, String[] firstPositions, long[] counts, BloomFilter[] positionFilters) {
+        this.offsets = offsets;
+        this.firstIds = firstIds;
+        this.firstPositions = firstPositions;
+        this.counts = counts;
+        this.positionFilters = positionFilters;
+        boolean sorted = true;
+        for (int i = 1; i < firstIds.length; i++) {
+            if (firstIds[i - 1].compareTo(firstIds[i]) > 0) {
+                sorted = false; // ids were given by the client out of order
+                break;
+            }
+        }
+        this.sorted = sorted;
+    }
+
+    /**
+     * Read the index stored next to the file, or build it from the header and the first record of every block. The
+     * reader must be positioned at the first block, and is left there.
+     */
+    static AvroBlockIndex of(RawdataAvroFile rawdataAvroFile, DataFileReader<?> dataFileReader) throws IOException {
+        long firstBlockOffset = dataFileReader.previousSync();
+        byte[] storedIndex = rawdataAvroFile.readBlockIndex();
+        if (storedIndex != null) {
+            return fromBytes(storedIndex, firstBlockOffset);
+        }
+        String codec = dataFileReader.getMetaString(DataFileConstants.CODEC);
+        if (codec != null && !DataFileConstants.NULL_CODEC.equals(codec)) {
+            // the first record of a compressed block can only be read by decompressing the block
+            AvroBlockIndex blockIndex = ofDecompressedBlocks(dataFileReader);
+            dataFileReader.seek(firstBlockOffset);
+            return blockIndex;
+        }
+        try (SeekableInput input = rawdataAvroFile.seekableInput()) {
+            return ofBlockHeaders(input, firstBlockOffset);
+        }
+    }
+
+    /**
+     * Read the count and size of every block and the first record that follows them, and skip the rest of the block.
+     */
+    static AvroBlockIndex ofBlockHeaders(SeekableInput input, long firstBlockOffset) throws IOException {
+        Builder builder = new Builder();
+        long length = input.length();
+        long offset = firstBlockOffset;
+        byte[] buf = new byte[BLOCK_PREFIX_BYTES];
+        BinaryDecoder decoder = null;
+        while (offset < length) {
+            int n = (int) Math.min(buf.length, length - offset);
+            input.seek(offset);
+            readFully(input, buf, n);
+            long[] varLong = new long[1];
+            int pos = readVarLong(buf, 0, n, varLong);
+            long count = varLong[0];
+            pos = readVarLong(buf, pos, n, varLong);
+            long size = varLong[0];
+            decoder = DecoderFactory.get().binaryDecoder(buf, pos, n - pos, decoder);
+            try {
+                addBlock(builder, offset, count, decoder);
+            } catch (EOFException e) {
+                if (n == length - offset || buf.length >= pos + size) {
+                    throw e; // the file or block ends before the first record does
+                }
+                buf = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.min(2L * buf.length, pos + size))];
+                continue; // first record is longer than the bytes read, read again with a larger buffer
+            }
+            offset += pos + size + DataFileConstants.SYNC_SIZE;
+        }
+        return builder.build();
+    }
+
+    private static AvroBlockIndex ofDecompressedBlocks(DataFileReader<?> dataFileReader) throws IOException {
+        Builder builder = new Builder();
+        BinaryDecoder decoder = null;
+        while (dataFileReader.hasNext()) {
+            long offset = dataFileReader.previousSync();
+            long count = dataFileReader.getBlockCount();
+            ByteBuffer block = dataFileReader.nextBlock();
+            decoder = DecoderFactory.get().binaryDecoder(block.array(), block.arrayOffset() + block.position(), block.remaining(), decoder);
+            addBlock(builder, offset, count, decoder);
+        }
+        return builder.build();
+    }
+
+    private static void addBlock(Builder builder, long offset, long count, BinaryDecoder decoder) throws IOException {
+        byte[] id = new byte[16];
+        decoder.readFixed(id);
+        Schema orderingGroupSchema = AvroRawdataProducer.schema.getField("orderingGroup").schema();
+        if (orderingGroupSchema.getTypes().get(decoder.readIndex()).getType() == Schema.Type.STRING) {
+            decoder.skipString();
+        }
+        decoder.readLong(); // sequenceNumber
+        String position = decoder.readString();
+        builder.addBlock(offset, ULID.fromBytes(id), position, count);
+    }
+
+    private static void readFully(SeekableInput input, byte[] buf, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            int read = input.read(buf, n, len - n);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            n += read;
+        }
+    }
+
+    /**
+     * Decode a zig-zag encoded variable-length long, as written by Avro.
+     *
+     * @return the position after the value
+     */
+    private static int readVarLong(byte[] buf, int pos, int limit, long[] value) throws EOFException {
+        long n = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= limit || shift > 63) {
+                throw new EOFException("Truncated block header");
+            }
+            int b = buf[pos++] & 0xff;
+            n |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        value[0] = (n >>> 1) ^ -(n & 1);
+        return pos;
+    }
+
+    int size() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the offset of the block from where to scan for the first record with a timestamp greater than or
+     * equal to the given timestamp, or -1 if the file has no blocks
+     */
+    long offsetOfBlockToScanFrom(long timestamp) {
+        if (offsets.length == 0) {
+            return -1;
+        }
+        if (!sorted) {
+            return offsets[0];
+        }
+        // find last block with a first record older than timestamp, the match is in that block or the one after
+        int low = 0;
+        int high = offsets.length - 1;
+        int block = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firstIds[mid].timestamp() < timestamp) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return offsets[block];
+    }
+
+    /**
+     * @return false if block cannot contain a record with the given position
+     */
+    boolean mightContainPosition(int block, String position) {
+        return positionFilters == null || positionFilters[block].mightContain(position);
+    }
+
+    /**
+     * @param firstBlockOffset subtracted from all offsets, so that the index does not depend on the size of the header
+     */
+    byte[] toBytes(long firstBlockOffset) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(32 + 40 * offsets.length);
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(baos, null);
+        try {
+            encoder.writeInt(FORMAT_VERSION);
+            encoder.writeInt(offsets.length);
+            long previousOffset = firstBlockOffset;
+            for (int i = 0; i < offsets.length; i++) {
+                encoder.writeLong(offsets[i] - previousOffset); // delta-encoded
+                previousOffset = offsets[i];
+                encoder.writeFixed(firstIds[i].toBytes());
+                encoder.writeString(firstPositions[i]);
+                encoder.writeLong(counts[i]);
+                encoder.writeInt(positionFilters[i].numHashFunctions);
+                encoder.writeBytes(positionFilters[i].bits);
+            }
+            encoder.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @param bytes            the encoded index
+     * @param firstBlockOffset added to all offsets
+     */
+    static AvroBlockIndex fromBytes(byte[] bytes, long firstBlockOffset) throws IOException {
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(bytes, null);
+        int version = decoder.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported block-index format version: " + version);
+        }
+        int n = decoder.readInt();
+        long[] offsets = new long[n];
+        ULID.Value[] firstIds = new ULID.Value[n];
+        String[] firstPositions = new String[n];
+        long[] counts = new long[n];
+        BloomFilter[] positionFilters = new BloomFilter[n];
+        long previousOffset = firstBlockOffset;
+        byte[] id = new byte[16];
+        for (int i = 0; i < n; i++) {
+            offsets[i] = previousOffset + decoder.readLong();
+            previousOffset = offsets[i];
+            decoder.readFixed(id);
+            firstIds[i] = ULID.fromBytes(id);
+            firstPositions[i] = decoder.readString();
+            counts[i] = decoder.readLong();
+            int numHashFunctions = decoder.readInt();
+            ByteBuffer bits = decoder.readBytes(null);
+            byte[] bitsArray = new byte[bits.remaining()];
+            bits.get(bitsArray);
+            positionFilters[i] = new BloomFilter(bitsArray, numHashFunctions);
+        }
+        return new AvroBlockIndex(offsets, firstIds, firstPositions, counts, positionFilters);
+    }
+
+    /**
+     * Collects the index of a file as it is being written.
+     */
+    static class Builder {
+
+        final List<Long> offsets = new ArrayList<>();
+        final List<ULID.Value> firstIds = new ArrayList<>();
+        final List<String> firstPositions = new ArrayList<>();
+        final List<Long> counts = new ArrayList<>();
+        final List<List<String>> positions = new ArrayList<>(); // empty if built from existing file
+        long offsetOfNextBlock = -1;
+
+        /**
+         * @param offset the offset of the block that the next record will be written to
+         */
+        void startBlock(long offset) {
+            offsetOfNextBlock = offset;
+        }
+
+        /**
+         * Register a record written to the current block, or as the first record of the block that was started last.
+         */
+        void record(ULID.Value id, String position) {
+            if (offsetOfNextBlock >= 0) {
+                addBlock(offsetOfNextBlock, id, position, 0);
+                positions.add(new ArrayList<>());
+                offsetOfNextBlock = -1;
+            }
+            counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+            positions.get(positions.size() - 1).add(position);
+        }
+
+        void addBlock(long offset, ULID.Value firstId, String firstPosition, long count) {
+            offsets.add(offset);
+            firstIds.add(firstId);
+            firstPositions.add(firstPosition);
+            counts.add(count);
+        }
+
+        AvroBlockIndex build() {
+            BloomFilter[] positionFilters = null;
+            if (!offsets.isEmpty() && positions.size() == offsets.size()) {
+                positionFilters = positions.stream().map(BloomFilter::of).toArray(BloomFilter[]::new);
+            }
+            return new AvroBlockIndex(
+                    offsets.stream().mapToLong(Long::longValue).toArray(),
+                    firstIds.toArray(new ULID.Value[0]),
+                    firstPositions.toArray(new String[0]),
+                    counts.stream().mapToLong(Long::longValue).toArray(),
+                    positionFilters);
+        }
+    }
+}
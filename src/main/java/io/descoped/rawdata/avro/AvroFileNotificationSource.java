@@ -0,0 +1,31 @@
+package io.descoped.rawdata.avro;
+
+/**
+ * Source of notifications about new files in topics. Consumers that wait for new files are woken up by
+ * notifications instead of polling the file-listing, as long as the source reports that it is reliable.
+ */
+public interface AvroFileNotificationSource extends AutoCloseable {
+
+    /**
+     * Start notifying the listener when new files are available in the topic.
+     *
+     * @param topic    the topic to watch
+     * @param listener invoked on every notification, must not block
+     */
+    void watch(String topic, Runnable listener);
+
+    /**
+     * Stop notifying listener of topic.
+     *
+     * @param topic the topic to stop watching
+     */
+    void unwatch(String topic);
+
+    /**
+     * @return false if notifications may have been lost, in which case consumers must fall back to polling
+     */
+    boolean isReliable();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,189 @@
+package io.descoped.rawdata.avro;
+
+import org.apache.avro.file.SeekableByteArrayInput;
+import org.apache.avro.file.SeekableInput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens and buffers the next files of a topic in the background, so that a consumer does not have to wait for
+ * a full storage round-trip every time it reaches the end of a file. Files are buffered in memory, and the total
+ * number of bytes held by buffered files is kept within a budget. The budget and the executor are owned by the client
+ * and shared by the prefetchers of all its consumers. A prefetched file counts against the budget until the consumer
+ * has finished reading it. Files that are not prefetched are read directly from storage without being buffered, and
+ * are not counted.
+ */
+class AvroFilePrefetcher {
+
+    static final Logger LOG = LoggerFactory.getLogger(AvroFilePrefetcher.class);
+
+    final String topic;
+    final int depth;
+    final long maxBytes;
+
+    static final int READ_CHUNK_BYTES = 1024 * 1024;
+
+    final AtomicLong bufferedBytes;
+    final Map<Long, CompletableFuture<SeekableInput>> prefetchedByTimestamp = new ConcurrentHashMap<>();
+    final AtomicBoolean closed = new AtomicBoolean(false);
+    final AtomicInteger generation = new AtomicInteger(0); // incremented when prefetched files are discarded
+    final ExecutorService executor;
+
+    /**
+     * @param bufferedBytes bytes held by the prefetched files of all consumers of the client
+     * @param executor      the prefetch executor of the client, or null if prefetching is disabled
+     */
+    AvroFilePrefetcher(String topic, int depth, long maxBytes, AtomicLong bufferedBytes, ExecutorService executor) {
+        this.topic = topic;
+        this.depth = depth;
+        this.maxBytes = maxBytes;
+        this.bufferedBytes = bufferedBytes;
+        this.executor = depth > 0 ? executor : null;
+    }
+
+    boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Schedule background reads of the first files in the given map that are not already prefetched.
+     *
+     * @param upcomingBlobs files following the one currently being read, ordered by timestamp
+     */
+    void prefetch(NavigableMap<Long, RawdataAvroFile> upcomingBlobs) {
+        if (!isEnabled() || closed.get()) {
+            return;
+        }
+        int i = 0;
+        for (Map.Entry<Long, RawdataAvroFile> entry : upcomingBlobs.entrySet()) {
+            if (i++ >= depth) {
+                break;
+            }
+            RawdataAvroFile rawdataAvroFile = entry.getValue();
+            int prefetchGeneration = generation.get();
+            prefetchedByTimestamp.computeIfAbsent(entry.getKey(), key -> CompletableFuture.supplyAsync(() -> readFully(rawdataAvroFile, prefetchGeneration), executor));
+        }
+    }
+
+    /**
+     * @return the buffered input of the file with the given key, or null if the file was not prefetched
+     */
+    SeekableInput take(Long key) {
+        CompletableFuture<SeekableInput> future = prefetchedByTimestamp.remove(key);
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.join();
+        } catch (CancellationException | CompletionException e) {
+            LOG.debug("Prefetch of file in topic {} failed, falling back to direct read", topic, e);
+            return null;
+        }
+    }
+
+    private boolean isDiscarded(int prefetchGeneration) {
+        return closed.get() || generation.get() != prefetchGeneration;
+    }
+
+    /**
+     * @return the buffered file, or null if it did not fit in the budget or was discarded while being read
+     */
+    private SeekableInput readFully(RawdataAvroFile rawdataAvroFile, int prefetchGeneration) {
+        if (isDiscarded(prefetchGeneration)) {
+            return null;
+        }
+        try (SeekableInput input = rawdataAvroFile.seekableInput()) {
+            long length = input.length();
+            if (length > Integer.MAX_VALUE || bufferedBytes.addAndGet(length) > maxBytes) {
+                if (length <= Integer.MAX_VALUE) {
+                    bufferedBytes.addAndGet(-length);
+                }
+                LOG.debug("Prefetch budget of {} bytes exceeded, not prefetching {}", maxBytes, rawdataAvroFile);
+                return null;
+            }
+            byte[] buf = new byte[(int) length];
+            try {
+                int offset = 0;
+                while (offset < buf.length) {
+                    if (isDiscarded(prefetchGeneration)) {
+                        bufferedBytes.addAndGet(-length);
+                        return null;
+                    }
+                    int n = input.read(buf, offset, Math.min(READ_CHUNK_BYTES, buf.length - offset));
+                    if (n == -1) {
+                        throw new EOFException(String.format("End of %s after %d of %d bytes", rawdataAvroFile, offset, length));
+                    }
+                    offset += n;
+                }
+            } catch (IOException | RuntimeException e) {
+                bufferedBytes.addAndGet(-length);
+                throw e;
+            }
+            return new BufferedSeekableInput(buf);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Discard all prefetched files, e.g. after the consumer has changed its position in the topic.
+     */
+    void clear() {
+        generation.incrementAndGet();
+        for (Long key : prefetchedByTimestamp.keySet()) {
+            CompletableFuture<SeekableInput> future = prefetchedByTimestamp.remove(key);
+            if (future != null) {
+                future.thenAccept(input -> {
+                    if (input != null) {
+                        try {
+                            input.close();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            clear();
+        }
+    }
+
+    /**
+     * Returns its bytes to the prefetch budget when closed.
+     */
+    class BufferedSeekableInput extends SeekableByteArrayInput {
+
+        final int length;
+        final AtomicBoolean released = new AtomicBoolean(false);
+
+        BufferedSeekableInput(byte[] data) {
+            super(data);
+            this.length = data.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (released.compareAndSet(false, true)) {
+                bufferedBytes.addAndGet(-length);
+            }
+        }
+    }
+}
@@ -1,17 +1,18 @@
 package io.descoped.rawdata.avro;
 
 import de.huxhorn.sulky.ulid.ULID;
-import io.descoped.rawdata.api.RawdataClient;
 import io.descoped.rawdata.api.RawdataClosedException;
 import io.descoped.rawdata.api.RawdataConsumer;
 import io.descoped.rawdata.api.RawdataCursor;
 import io.descoped.rawdata.api.RawdataMessage;
 import io.descoped.rawdata.api.RawdataNoSuchPositionException;
-import io.descoped.rawdata.api.RawdataProducer;
+import io.descoped.rawdata.avro.api.ExtendedRawdataClient;
 import org.apache.avro.file.DataFileReader;
-import org.apache.avro.generic.GenericDatumReader;
-import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.SeekableInput;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,12 +24,28 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public abstract class AvroRawdataClient implements RawdataClient {
+public abstract class AvroRawdataClient implements ExtendedRawdataClient {
 
     static final Logger LOG = LoggerFactory.getLogger(AvroRawdataClient.class);
 
@@ -38,43 +55,265 @@ public abstract class AvroRawdataClient implements RawdataClient {
     final long avroMaxSeconds;
     final long avroMaxBytes;
     final int avroSyncInterval;
+    final int producerPipelineCapacity;
+    final long producerPipelineMaxWaitMillis;
+    final long producerCommitMaxDelayMillis;
     final int fileListingMinIntervalSeconds;
+    final boolean incrementalFileListing;
+    final int fullFileListingIntervalSeconds;
+    final int prefetchDepth;
+    final long prefetchMaxBytes;
+    final AtomicLong prefetchedBytes = new AtomicLong(0); // held by the prefetched files of all consumers
+    final boolean lazyDecoding;
+    final int decodeParallelism;
+    final ExecutorService decodeExecutor;
+    final int scanParallelism;
+    ExecutorService scanExecutor; // created on first use, guarded by this
+    ExecutorService publisherExecutor; // created on first use, guarded by this
+    ExecutorService prefetchExecutor; // created on first use, guarded by this
+    ScheduledExecutorService publisherRetryExecutor; // created on first use, guarded by this
+    final AvroFileNotificationSource notificationSource;
 
     final List<AvroRawdataProducer> producers = new CopyOnWriteArrayList<>();
     final List<AvroRawdataConsumer> consumers = new CopyOnWriteArrayList<>();
+    final Map<String, TopicAvroFileCache> topicAvroFileCacheByTopic = new ConcurrentHashMap<>();
+    final LruCache<String, AvroBlockIndex> blockIndexByFileIdentity = new LruCache<>(1000);
+    final LruCache<String, LastMessage> lastMessageByTopic = new LruCache<>(1000);
+    final LruCache<String, AvroFileHeader> headerByFileIdentity = new LruCache<>(1000);
     final AvroRawdataUtils readOnlyAvroRawdataUtils;
     final AvroRawdataUtils readWriteAvroRawdataUtils;
 
-    public AvroRawdataClient(Path tmpFileFolder, long avroMaxSeconds, long avroMaxBytes, int avroSyncInterval, int fileListingMinIntervalSeconds, AvroRawdataUtils readOnlyAvroRawdataUtils, AvroRawdataUtils readWriteAvroRawdataUtils) {
-        this.tmpFileFolder = tmpFileFolder;
-        this.avroMaxSeconds = avroMaxSeconds;
-        this.avroMaxBytes = avroMaxBytes;
-        this.avroSyncInterval = avroSyncInterval;
-        this.fileListingMinIntervalSeconds = fileListingMinIntervalSeconds;
+    public AvroRawdataClient(AvroRawdataClientSettings settings, AvroFileNotificationSource notificationSource, AvroRawdataUtils readOnlyAvroRawdataUtils, AvroRawdataUtils readWriteAvroRawdataUtils) {
+        this.tmpFileFolder = settings.tmpFileFolder;
+        this.avroMaxSeconds = settings.avroMaxSeconds;
+        this.avroMaxBytes = settings.avroMaxBytes;
+        this.avroSyncInterval = settings.avroSyncInterval;
+        this.producerPipelineCapacity = settings.producerPipelineCapacity;
+        this.producerPipelineMaxWaitMillis = settings.producerPipelineMaxWaitMillis;
+        this.producerCommitMaxDelayMillis = settings.producerCommitMaxDelayMillis;
+        this.fileListingMinIntervalSeconds = settings.fileListingMinIntervalSeconds;
+        this.incrementalFileListing = settings.incrementalFileListing;
+        this.fullFileListingIntervalSeconds = settings.fullFileListingIntervalSeconds;
+        this.prefetchDepth = settings.prefetchDepth;
+        this.prefetchMaxBytes = settings.prefetchMaxBytes;
+        this.lazyDecoding = settings.lazyDecoding;
+        this.decodeParallelism = settings.decodeParallelism;
+        this.decodeExecutor = decodeParallelism > 0 && !lazyDecoding ? new ForkJoinPool(decodeParallelism) : null;
+        this.scanParallelism = settings.scanParallelism;
+        this.notificationSource = notificationSource;
         this.readOnlyAvroRawdataUtils = readOnlyAvroRawdataUtils;
         this.readWriteAvroRawdataUtils = readWriteAvroRawdataUtils;
     }
 
     @Override
-    public RawdataProducer producer(String topic) {
+    public ExtendedRawdataClient.Producer producer(String topic) {
         if (closed.get()) {
             throw new RawdataClosedException();
         }
-        AvroRawdataProducer producer = new AvroRawdataProducer(readWriteAvroRawdataUtils, tmpFileFolder, avroMaxSeconds, avroMaxBytes, avroSyncInterval, topic);
+        AvroRawdataProducer producer = new AvroRawdataProducer(readWriteAvroRawdataUtils, tmpFileFolder, avroMaxSeconds, avroMaxBytes, avroSyncInterval, topic, producerPipelineCapacity, producerPipelineMaxWaitMillis, producerCommitMaxDelayMillis);
         producers.add(producer);
         return producer;
     }
 
     @Override
-    public RawdataConsumer consumer(String topic, RawdataCursor cursor) {
+    public ExtendedRawdataClient.Consumer consumer(String topic, RawdataCursor cursor) {
+        return consumer(topic, cursor, null);
+    }
+
+    @Override
+    public ExtendedRawdataClient.Consumer consumer(String topic, RawdataCursor cursor, Set<String> keys) {
+        return newConsumer(topic, cursor, keys);
+    }
+
+    AvroRawdataConsumer newConsumer(String topic, RawdataCursor cursor, Set<String> keys) {
         if (closed.get()) {
             throw new RawdataClosedException();
         }
-        AvroRawdataConsumer consumer = new AvroRawdataConsumer(readOnlyAvroRawdataUtils, topic, (AvroRawdataCursor) cursor, fileListingMinIntervalSeconds);
+        AvroRawdataConsumer consumer = new AvroRawdataConsumer(this, topic, (AvroRawdataCursor) cursor, keys == null ? null : Set.copyOf(keys));
         consumers.add(consumer);
         return consumer;
     }
 
+    @Override
+    public Flow.Publisher<RawdataMessage> publisher(String topic, RawdataCursor cursor) {
+        if (closed.get()) {
+            throw new RawdataClosedException();
+        }
+        return new AvroRawdataPublisher(this, topic, (AvroRawdataCursor) cursor, publisherExecutor(), publisherRetryExecutor());
+    }
+
+    @Override
+    public Flow.Publisher<RawdataMessage> publisher(String topic, RawdataCursor cursor, Executor executor) {
+        if (closed.get()) {
+            throw new RawdataClosedException();
+        }
+        return new AvroRawdataPublisher(this, topic, (AvroRawdataCursor) cursor, executor, publisherRetryExecutor());
+    }
+
+    synchronized ExecutorService scanExecutor() {
+        if (scanExecutor == null) {
+            AtomicInteger scanThreadCount = new AtomicInteger(0);
+            scanExecutor = Executors.newFixedThreadPool(scanParallelism, runnable -> {
+                Thread thread = new Thread(runnable, "rawdata-scan-" + scanThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scanExecutor;
+    }
+
+    /**
+     * Threads that prefetch the upcoming files of all consumers. Bounded by the prefetch depth, so that a client with
+     * many consumers does not read more files at a time than a single consumer would have queued.
+     */
+    synchronized ExecutorService prefetchExecutor() {
+        if (prefetchExecutor == null) {
+            AtomicInteger prefetchThreadCount = new AtomicInteger(0);
+            prefetchExecutor = Executors.newFixedThreadPool(prefetchDepth, runnable -> {
+                Thread thread = new Thread(runnable, "rawdata-prefetch-" + prefetchThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Threads that read and deliver the messages of publishers created without an executor. Reading may block on
+     * listing and file I/O, so these are not run on a shared pool. There is at most one drain task per subscription
+     * at a time, and idle threads are released.
+     */
+    synchronized ExecutorService publisherExecutor() {
+        if (publisherExecutor == null) {
+            AtomicInteger publisherThreadCount = new AtomicInteger(0);
+            publisherExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "rawdata-publisher-" + publisherThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return publisherExecutor;
+    }
+
+    /**
+     * Timer of the polls of subscriptions that wait for new files. Its tasks only hand the drain over to the executor
+     * of the publisher.
+     */
+    synchronized ScheduledExecutorService publisherRetryExecutor() {
+        if (publisherRetryExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "rawdata-publisher-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            publisherRetryExecutor = executor;
+        }
+        return publisherRetryExecutor;
+    }
+
+    @Override
+    public Stream<RawdataMessage> scan(String topic, long fromTimestamp, long toTimestamp, boolean ordered) {
+        if (closed.get()) {
+            throw new RawdataClosedException();
+        }
+        if (fromTimestamp > toTimestamp) {
+            throw new IllegalArgumentException(String.format("fromTimestamp %d is after toTimestamp %d", fromTimestamp, toTimestamp));
+        }
+        NavigableMap<Long, RawdataAvroFile> topicBlobs = readOnlyAvroRawdataUtils.getTopicBlobs(topic);
+        Long firstKey = topicBlobs.lowerKey(fromTimestamp); // file that may contain the first messages of the range
+        NavigableMap<Long, RawdataAvroFile> filesInRange = topicBlobs.subMap(firstKey == null ? fromTimestamp : firstKey, true, toTimestamp, false);
+        AvroTopicScan scan = new AvroTopicScan(this, filesInRange, fromTimestamp, toTimestamp, ordered, scanParallelism, scanExecutor());
+        int characteristics = Spliterator.NONNULL | (ordered ? Spliterator.ORDERED : 0);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scan, characteristics), false).onClose(scan::close);
+    }
+
+    /**
+     * All consumers of a topic share the same file-listing, so that the number of list operations against the
+     * underlying storage scales with the number of topics rather than with the number of consumers.
+     */
+    TopicAvroFileCache acquireTopicAvroFileCache(String topic) {
+        return topicAvroFileCacheByTopic.compute(topic, (t, cache) -> {
+            if (cache == null) {
+                // producers may upload a file up to one window after its timestamp, add a minute for the upload itself
+                long incrementalLookbackMillis = TimeUnit.SECONDS.toMillis(avroMaxSeconds + 60);
+                cache = new TopicAvroFileCache(readOnlyAvroRawdataUtils, t, fileListingMinIntervalSeconds, incrementalFileListing, incrementalLookbackMillis, fullFileListingIntervalSeconds);
+                if (notificationSource != null) {
+                    // watch before first listing, so that no file added after the listing can go unnoticed
+                    notificationSource.watch(t, cache::notifyNewFiles);
+                }
+            }
+            cache.referenceCount++;
+            return cache;
+        });
+    }
+
+    void releaseTopicAvroFileCache(TopicAvroFileCache topicAvroFileCache) {
+        topicAvroFileCacheByTopic.computeIfPresent(topicAvroFileCache.topic, (t, cache) -> {
+            if (cache != topicAvroFileCache) {
+                return cache;
+            }
+            if (--cache.referenceCount > 0) {
+                return cache;
+            }
+            if (notificationSource != null) {
+                notificationSource.unwatch(t);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @param rawdataAvroFile the file to get the block index of
+     * @param dataFileReader  a reader of the file positioned at the first block, which is left there
+     */
+    AvroBlockIndex blockIndexOf(RawdataAvroFile rawdataAvroFile, DataFileReader<?> dataFileReader) {
+        return blockIndexByFileIdentity.computeIfAbsent(rawdataAvroFile.getIdentity(), identity -> {
+            try {
+                return AvroBlockIndex.of(rawdataAvroFile, dataFileReader);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * The parsed header of a file, and the offset of the first block which is where the header ends.
+     */
+    static class AvroFileHeader {
+        final DataFileStream.Header header;
+        final long offsetOfFirstBlock;
+
+        AvroFileHeader(DataFileStream.Header header, long offsetOfFirstBlock) {
+            this.header = header;
+            this.offsetOfFirstBlock = offsetOfFirstBlock;
+        }
+    }
+
+    /**
+     * Open a reader of the file positioned at the first block. Files are immutable, so the header is only read and
+     * parsed the first time a file is opened, later readers start directly at the first block with the cached
+     * header.
+     *
+     * @param seekableInput an input of the file positioned at the start of the file
+     */
+    <D> DataFileReader<D> openDataFileReader(RawdataAvroFile rawdataAvroFile, SeekableInput seekableInput, DatumReader<D> datumReader) throws IOException {
+        String identity = rawdataAvroFile.getIdentity();
+        AvroFileHeader cachedHeader = headerByFileIdentity.get(identity);
+        if (cachedHeader == null) {
+            DataFileReader<D> dataFileReader = new DataFileReader<>(seekableInput, datumReader);
+            headerByFileIdentity.put(identity, new AvroFileHeader(dataFileReader.getHeader(), dataFileReader.previousSync()));
+            return dataFileReader;
+        }
+        seekableInput.seek(cachedHeader.offsetOfFirstBlock);
+        return DataFileReader.openReader(seekableInput, datumReader, cachedHeader.header, false);
+    }
+
+    @Override
+    public RawdataCursor cursorAtEnd(String topic) {
+        return AvroRawdataCursor.atEndOf(topic);
+    }
+
     @Override
     public RawdataCursor cursorOf(String topic, ULID.Value ulid, boolean inclusive) {
         return new AvroRawdataCursor(ulid, inclusive);
@@ -85,32 +324,65 @@ public abstract class AvroRawdataClient implements RawdataClient {
         return cursorOf(topic, ulidOfPosition(topic, position, approxTimestamp, tolerance), inclusive);
     }
 
+    /**
+     * Find the message with the given position in the time-range. Only blocks whose position filter might contain
+     * the position are decoded.
+     */
     private ULID.Value ulidOfPosition(String topic, String position, long approxTimestamp, Duration tolerance) throws RawdataNoSuchPositionException {
         ULID.Value lowerBoundUlid = RawdataConsumer.beginningOf(approxTimestamp - tolerance.toMillis());
         ULID.Value upperBoundUlid = RawdataConsumer.beginningOf(approxTimestamp + tolerance.toMillis());
-        try (AvroRawdataConsumer consumer = new AvroRawdataConsumer(readOnlyAvroRawdataUtils, topic, new AvroRawdataCursor(lowerBoundUlid, true), fileListingMinIntervalSeconds)) {
-            RawdataMessage message;
-            while ((message = consumer.receive(0, TimeUnit.SECONDS)) != null) {
-                if (message.timestamp() > upperBoundUlid.timestamp()) {
-                    throw new RawdataNoSuchPositionException(
-                            String.format("Unable to find position, reached upper-bound. Time-range=[%s,%s), position=%s",
-                                    formatTimestamp(lowerBoundUlid.timestamp()),
-                                    formatTimestamp(upperBoundUlid.timestamp()),
-                                    position));
-                }
-                if (position.equals(message.position())) {
-                    return message.ulid(); // found matching position
+        long lowerBound = lowerBoundUlid.timestamp();
+        long upperBound = upperBoundUlid.timestamp();
+        TopicAvroFileCache topicAvroFileCache = acquireTopicAvroFileCache(topic);
+        NavigableMap<Long, RawdataAvroFile> topicBlobs;
+        try {
+            topicBlobs = topicAvroFileCache.blobsByTimestamp();
+        } finally {
+            releaseTopicAvroFileCache(topicAvroFileCache);
+        }
+        Long fromKey = topicBlobs.lowerKey(lowerBound); // a file may end with messages of the next file's timestamp
+        NavigableMap<Long, RawdataAvroFile> candidateBlobs = fromKey == null
+                ? topicBlobs.headMap(upperBound, true)
+                : topicBlobs.subMap(fromKey, true, upperBound, true);
+        DatumReader<RawdataMessage> datumReader = new RawdataMessageDatumReader(null);
+        for (RawdataAvroFile rawdataAvroFile : candidateBlobs.values()) {
+            try (DataFileReader<RawdataMessage> dataFileReader = openDataFileReader(rawdataAvroFile, rawdataAvroFile.seekableInput(), datumReader)) {
+                AvroBlockIndex blockIndex = blockIndexOf(rawdataAvroFile, dataFileReader);
+                for (int block = 0; block < blockIndex.size(); block++) {
+                    if (blockIndex.sorted) {
+                        if (block + 1 < blockIndex.size() && blockIndex.firstIds[block + 1].timestamp() < lowerBound) {
+                            continue; // block only has messages older than time-range
+                        }
+                        if (blockIndex.firstIds[block].timestamp() > upperBound) {
+                            break; // block only has messages newer than time-range
+                        }
+                    }
+                    if (!blockIndex.mightContainPosition(block, position)) {
+                        continue;
+                    }
+                    dataFileReader.seek(blockIndex.offsets[block]);
+                    for (long i = 0; i < blockIndex.counts[block] && dataFileReader.hasNext(); i++) {
+                        RawdataMessage message = dataFileReader.next();
+                        if (message.timestamp() >= lowerBound && message.timestamp() <= upperBound && position.equals(message.position())) {
+                            return message.ulid(); // found matching position
+                        }
+                    }
                 }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-        } catch (RuntimeException | Error e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        }
+        if (topicBlobs.higherKey(upperBound) != null) {
+            throw new RawdataNoSuchPositionException(
+                    String.format("Unable to find position, reached upper-bound. Time-range=[%s,%s), position=%s",
+                            formatTimestamp(lowerBound),
+                            formatTimestamp(upperBound),
+                            position));
         }
         throw new RawdataNoSuchPositionException(
                 String.format("Unable to find position, reached end-of-stream. Time-range=[%s,%s), position=%s",
-                        formatTimestamp(lowerBoundUlid.timestamp()),
-                        formatTimestamp(upperBoundUlid.timestamp()),
+                        formatTimestamp(lowerBound),
+                        formatTimestamp(upperBound),
                         position));
     }
 
@@ -120,24 +392,76 @@ public abstract class AvroRawdataClient implements RawdataClient {
         return dt.format(dtf);
     }
 
+    /**
+     * The last message of a topic, and the file it was read from.
+     */
+    static class LastMessage {
+        final Long fileKey;
+        final String fileIdentity;
+        final RawdataMessage message;
+
+        LastMessage(Long fileKey, String fileIdentity, RawdataMessage message) {
+            this.fileKey = fileKey;
+            this.fileIdentity = fileIdentity;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Only files from the file of the previously found last message are listed, and the last message is only read
+     * again when the last file has changed.
+     */
     @Override
     public RawdataMessage lastMessage(String topic) throws RawdataClosedException {
-        NavigableMap<Long, RawdataAvroFile> topicBlobs = readOnlyAvroRawdataUtils.getTopicBlobs(topic);
+        LastMessage cached = lastMessageByTopic.get(topic);
+        NavigableMap<Long, RawdataAvroFile> topicBlobs = cached == null ? null : readOnlyAvroRawdataUtils.getTopicBlobsFrom(topic, cached.fileKey);
+        if (topicBlobs == null || topicBlobs.isEmpty()) {
+            topicBlobs = readOnlyAvroRawdataUtils.getTopicBlobs(topic);
+        }
         if (topicBlobs.isEmpty()) {
             return null;
         }
-        RawdataAvroFile rawdataAvroFile = topicBlobs.lastEntry().getValue();
+        Map.Entry<Long, RawdataAvroFile> lastEntry = topicBlobs.lastEntry();
+        RawdataAvroFile rawdataAvroFile = lastEntry.getValue();
+        String identity = rawdataAvroFile.getIdentity();
+        if (cached != null && cached.fileIdentity.equals(identity)) {
+            return cached.message;
+        }
         LOG.debug("Reading last message from RawdataAvroFile: {}", rawdataAvroFile);
-        DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(AvroRawdataProducer.schema);
-        DataFileReader<GenericRecord> dataFileReader;
+        RawdataMessage message = readLastMessage(rawdataAvroFile);
+        lastMessageByTopic.put(topic, new LastMessage(lastEntry.getKey(), identity, message));
+        return message;
+    }
+
+    /**
+     * Read the last message from the last block of the file, which is followed only by the sync marker at the end of
+     * the file. Falls back to reading the file through its header if the tail is not a single complete block.
+     */
+    RawdataMessage readLastMessage(RawdataAvroFile rawdataAvroFile) {
+        byte[] tail = rawdataAvroFile.readTail(rawdataAvroFile.getOffsetOfLastBlock());
         try {
-            dataFileReader = new DataFileReader<>(rawdataAvroFile.seekableInput(), datumReader);
+            BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(tail, null);
+            long count = decoder.readLong();
+            decoder.readLong(); // block size in bytes
+            RawdataMessageDatumReader datumReader = new RawdataMessageDatumReader(null);
+            RawdataMessage message = null;
+            for (long i = 0; i < count; i++) {
+                message = datumReader.read(null, decoder);
+            }
+            decoder.readFixed(new byte[16]); // sync marker
+            if (count > 0 && decoder.isEnd()) {
+                return message;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Tail of {} is not a single block, reading file from header", rawdataAvroFile, e);
+        }
+        try (DataFileReader<RawdataMessage> dataFileReader = openDataFileReader(rawdataAvroFile, rawdataAvroFile.seekableInput(), new RawdataMessageDatumReader(null))) {
             dataFileReader.seek(rawdataAvroFile.getOffsetOfLastBlock());
-            GenericRecord record = null;
+            RawdataMessage message = null;
             while (dataFileReader.hasNext()) {
-                record = dataFileReader.next(record);
+                message = dataFileReader.next();
             }
-            return record == null ? null : AvroRawdataConsumer.toRawdataMessage(record);
+            return message;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -159,6 +483,30 @@ public abstract class AvroRawdataClient implements RawdataClient {
                 consumer.close();
             }
             consumers.clear();
+            if (notificationSource != null) {
+                notificationSource.close();
+            }
+            if (decodeExecutor != null) {
+                decodeExecutor.shutdown();
+            }
+            synchronized (this) {
+                if (scanExecutor != null) {
+                    scanExecutor.shutdown();
+                }
+                if (publisherExecutor != null) {
+                    publisherExecutor.shutdown();
+                }
+                if (prefetchExecutor != null) {
+                    prefetchExecutor.shutdownNow();
+                }
+                if (publisherRetryExecutor != null) {
+                    publisherRetryExecutor.shutdownNow();
+                }
+            }
+            readOnlyAvroRawdataUtils.close();
+            if (readWriteAvroRawdataUtils != readOnlyAvroRawdataUtils) {
+                readWriteAvroRawdataUtils.close();
+            }
         }
     }
 }
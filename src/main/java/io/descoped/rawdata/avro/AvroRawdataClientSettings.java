@@ -0,0 +1,218 @@
+package io.descoped.rawdata.avro;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tuning options of a client, shared by all providers. Built from the configuration of a provider with
+ * {@link #of(Map, String)}, or with a {@link Builder} where each option that is not set has the same default as
+ * when it is missing from the configuration. Options are validated when built, and an option that is out of range
+ * fails with an {@link IllegalArgumentException} naming its configuration key.
+ */
+public class AvroRawdataClientSettings {
+
+    final Path tmpFileFolder;
+    final long avroMaxSeconds;
+    final long avroMaxBytes;
+    final int avroSyncInterval;
+    final int producerPipelineCapacity;
+    final long producerPipelineMaxWaitMillis;
+    final long producerCommitMaxDelayMillis;
+    final int fileListingMinIntervalSeconds;
+    final boolean incrementalFileListing;
+    final int fullFileListingIntervalSeconds;
+    final int prefetchDepth;
+    final long prefetchMaxBytes;
+    final boolean lazyDecoding;
+    final int decodeParallelism;
+    final int scanParallelism;
+
+    AvroRawdataClientSettings(Builder builder) {
+        this.tmpFileFolder = Objects.requireNonNull(builder.tmpFileFolder, "tmpFileFolder");
+        this.avroMaxSeconds = builder.avroMaxSeconds;
+        this.avroMaxBytes = builder.avroMaxBytes;
+        this.avroSyncInterval = builder.avroSyncInterval;
+        this.producerPipelineCapacity = builder.producerPipelineCapacity;
+        this.producerPipelineMaxWaitMillis = builder.producerPipelineMaxWaitMillis;
+        this.producerCommitMaxDelayMillis = builder.producerCommitMaxDelayMillis;
+        this.fileListingMinIntervalSeconds = builder.fileListingMinIntervalSeconds;
+        this.incrementalFileListing = builder.incrementalFileListing;
+        this.fullFileListingIntervalSeconds = builder.fullFileListingIntervalSeconds;
+        this.prefetchDepth = builder.prefetchDepth;
+        this.prefetchMaxBytes = builder.prefetchMaxBytes;
+        this.lazyDecoding = builder.lazyDecoding;
+        this.decodeParallelism = builder.decodeParallelism;
+        this.scanParallelism = builder.scanParallelism;
+        String listingKeyPrefix = builder.listingKeyPrefix;
+        requireAtLeast(avroMaxSeconds, 1, "avro-file.max.seconds");
+        requireAtLeast(avroMaxBytes, 1, "avro-file.max.bytes");
+        requireAtLeast(avroSyncInterval, 1, "avro-file.sync.interval");
+        requireAtLeast(producerPipelineCapacity, 0, "producer.pipeline.capacity");
+        requireAtLeast(producerPipelineMaxWaitMillis, 0, "producer.pipeline.max-wait-ms");
+        requireAtLeast(producerCommitMaxDelayMillis, 0, "producer.commit.max-delay-ms");
+        requireAtLeast(fileListingMinIntervalSeconds, 0, listingKeyPrefix + "listing.min-interval-seconds");
+        requireAtLeast(fullFileListingIntervalSeconds, 0, listingKeyPrefix + "listing.full-interval-seconds");
+        requireAtLeast(prefetchDepth, 0, "consumer.prefetch.depth");
+        requireAtLeast(prefetchMaxBytes, 0, "consumer.prefetch.max-bytes");
+        requireAtLeast(decodeParallelism, 0, "consumer.decode.parallelism");
+        requireAtLeast(scanParallelism, 1, "scan.parallelism");
+    }
+
+    private static void requireAtLeast(long value, long min, String key) {
+        if (value < min) {
+            throw new IllegalArgumentException(String.format("'%s' must be at least %d, was %d", key, min, value));
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param configuration    the configuration of the provider
+     * @param listingKeyPrefix the prefix of the listing keys of the provider, e.g. "gcs." for
+     *                         "gcs.listing.min-interval-seconds"
+     */
+    public static AvroRawdataClientSettings of(Map<String, String> configuration, String listingKeyPrefix) {
+        Builder builder = builder();
+        builder.listingKeyPrefix = listingKeyPrefix;
+        builder.tmpFileFolder(Path.of(configuration.get("local-temp-folder")))
+                .avroMaxSeconds(Long.parseLong(configuration.get("avro-file.max.seconds")))
+                .avroMaxBytes(Long.parseLong(configuration.get("avro-file.max.bytes")))
+                .avroSyncInterval(Integer.parseInt(configuration.get("avro-file.sync.interval")))
+                .fileListingMinIntervalSeconds(Integer.parseInt(configuration.get(listingKeyPrefix + "listing.min-interval-seconds")));
+        if (configuration.containsKey(listingKeyPrefix + "listing.incremental")) {
+            builder.incrementalFileListing(Boolean.parseBoolean(configuration.get(listingKeyPrefix + "listing.incremental")));
+        }
+        if (configuration.containsKey(listingKeyPrefix + "listing.full-interval-seconds")) {
+            builder.fullFileListingIntervalSeconds(Integer.parseInt(configuration.get(listingKeyPrefix + "listing.full-interval-seconds")));
+        }
+        if (configuration.containsKey("producer.pipeline.capacity")) {
+            builder.producerPipelineCapacity(Integer.parseInt(configuration.get("producer.pipeline.capacity")));
+        }
+        if (configuration.containsKey("producer.pipeline.max-wait-ms")) {
+            builder.producerPipelineMaxWaitMillis(Long.parseLong(configuration.get("producer.pipeline.max-wait-ms")));
+        }
+        if (configuration.containsKey("producer.commit.max-delay-ms")) {
+            builder.producerCommitMaxDelayMillis(Long.parseLong(configuration.get("producer.commit.max-delay-ms")));
+        }
+        if (configuration.containsKey("consumer.prefetch.depth")) {
+            builder.prefetchDepth(Integer.parseInt(configuration.get("consumer.prefetch.depth")));
+        }
+        if (configuration.containsKey("consumer.prefetch.max-bytes")) {
+            builder.prefetchMaxBytes(Long.parseLong(configuration.get("consumer.prefetch.max-bytes")));
+        }
+        if (configuration.containsKey("consumer.lazy-decoding")) {
+            builder.lazyDecoding(Boolean.parseBoolean(configuration.get("consumer.lazy-decoding")));
+        }
+        if (configuration.containsKey("consumer.decode.parallelism")) {
+            builder.decodeParallelism(Integer.parseInt(configuration.get("consumer.decode.parallelism")));
+        }
+        if (configuration.containsKey("scan.parallelism")) {
+            builder.scanParallelism(Integer.parseInt(configuration.get("scan.parallelism")));
+        }
+        return builder.build();
+    }
+
+    public static class Builder {
+        Path tmpFileFolder;
+        long avroMaxSeconds = 3600;
+        long avroMaxBytes = 10 * 1024 * 1024;
+        int avroSyncInterval = 512 * 1024;
+        int producerPipelineCapacity = 0;
+        long producerPipelineMaxWaitMillis = 5 * 60 * 1000;
+        long producerCommitMaxDelayMillis = 1000;
+        int fileListingMinIntervalSeconds = 60;
+        boolean incrementalFileListing = false;
+        int fullFileListingIntervalSeconds = 600;
+        int prefetchDepth = 0;
+        long prefetchMaxBytes = 64 * 1024 * 1024;
+        boolean lazyDecoding = false;
+        int decodeParallelism = 0;
+        int scanParallelism = 4;
+        String listingKeyPrefix = ""; // of the configuration keys named in validation errors
+
+        Builder() {
+        }
+
+        public Builder tmpFileFolder(Path tmpFileFolder) {
+            this.tmpFileFolder = tmpFileFolder;
+            return this;
+        }
+
+        public Builder avroMaxSeconds(long avroMaxSeconds) {
+            this.avroMaxSeconds = avroMaxSeconds;
+            return this;
+        }
+
+        public Builder avroMaxBytes(long avroMaxBytes) {
+            this.avroMaxBytes = avroMaxBytes;
+            return this;
+        }
+
+        public Builder avroSyncInterval(int avroSyncInterval) {
+            this.avroSyncInterval = avroSyncInterval;
+            return this;
+        }
+
+        public Builder producerPipelineCapacity(int producerPipelineCapacity) {
+            this.producerPipelineCapacity = producerPipelineCapacity;
+            return this;
+        }
+
+        public Builder producerPipelineMaxWaitMillis(long producerPipelineMaxWaitMillis) {
+            this.producerPipelineMaxWaitMillis = producerPipelineMaxWaitMillis;
+            return this;
+        }
+
+        public Builder producerCommitMaxDelayMillis(long producerCommitMaxDelayMillis) {
+            this.producerCommitMaxDelayMillis = producerCommitMaxDelayMillis;
+            return this;
+        }
+
+        public Builder fileListingMinIntervalSeconds(int fileListingMinIntervalSeconds) {
+            this.fileListingMinIntervalSeconds = fileListingMinIntervalSeconds;
+            return this;
+        }
+
+        public Builder incrementalFileListing(boolean incrementalFileListing) {
+            this.incrementalFileListing = incrementalFileListing;
+            return this;
+        }
+
+        public Builder fullFileListingIntervalSeconds(int fullFileListingIntervalSeconds) {
+            this.fullFileListingIntervalSeconds = fullFileListingIntervalSeconds;
+            return this;
+        }
+
+        public Builder prefetchDepth(int prefetchDepth) {
+            this.prefetchDepth = prefetchDepth;
+            return this;
+        }
+
+        public Builder prefetchMaxBytes(long prefetchMaxBytes) {
+            this.prefetchMaxBytes = prefetchMaxBytes;
+            return this;
+        }
+
+        public Builder lazyDecoding(boolean lazyDecoding) {
+            this.lazyDecoding = lazyDecoding;
+            return this;
+        }
+
+        public Builder decodeParallelism(int decodeParallelism) {
+            this.decodeParallelism = decodeParallelism;
+            return this;
+        }
+
+        public Builder scanParallelism(int scanParallelism) {
+            this.scanParallelism = scanParallelism;
+            return this;
+        }
+
+        public AvroRawdataClientSettings build() {
+            return new AvroRawdataClientSettings(this);
+        }
+    }
+}
@@ -1,44 +1,65 @@
 package io.descoped.rawdata.avro;
 
-import de.huxhorn.sulky.ulid.ULID;
 import io.descoped.rawdata.api.RawdataClosedException;
-import io.descoped.rawdata.api.RawdataConsumer;
+import io.descoped.rawdata.api.RawdataCursor;
 import io.descoped.rawdata.api.RawdataMessage;
+import io.descoped.rawdata.avro.api.ExtendedRawdataClient;
 import org.apache.avro.file.DataFileReader;
-import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumReader;
-import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.file.SeekableInput;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DatumReader;
-import org.apache.avro.util.Utf8;
+import org.apache.avro.io.DecoderFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
 
-import static java.util.Optional.ofNullable;
-
-class AvroRawdataConsumer implements RawdataConsumer {
+/**
+ * Consumer of a topic in Avro files. In addition to the operations of a rawdata consumer, messages can be received
+ * in batches using {@link #receiveBatch(int, long, int, TimeUnit)}. A consumer can be created with a projection of
+ * data keys, see {@link AvroRawdataClient#consumer(String, RawdataCursor, Set)}.
+ */
+class AvroRawdataConsumer implements ExtendedRawdataClient.Consumer {
 
     final String topic;
     final TopicAvroFileCache gcsTopicAvroFileCache;
     final AtomicReference<Long> activeBlobFromKeyRef = new AtomicReference<>(-1L);
-    final AtomicReference<DataFileReader<GenericRecord>> activeBlobDataFileReaderRef = new AtomicReference<>(null);
+    final AtomicReference<DataFileReader<RawdataMessage>> activeBlobDataFileReaderRef = new AtomicReference<>(null);
     final AtomicBoolean closed = new AtomicBoolean(false);
     final Deque<RawdataMessage> preloadedMessages = new ConcurrentLinkedDeque<>();
+    final AvroFilePrefetcher prefetcher;
+    final AvroRawdataClient client;
+    final Set<String> keys; // null means all keys
+    final Deque<CompletableFuture<List<RawdataMessage>>> decodingBlocks = new ArrayDeque<>();
+    final RawdataMessageDatumReader blockDatumReader; // decodes whole blocks on the consumer thread
+    BinaryDecoder blockDecoder;
 
-    AvroRawdataConsumer(AvroRawdataUtils gcsRawdataUtils, String topic, AvroRawdataCursor cursor, int minFileListingIntervalSeconds) {
+    AvroRawdataConsumer(AvroRawdataClient client, String topic, AvroRawdataCursor cursor, Set<String> keys) {
+        if (cursor != null && cursor.end && !topic.equals(cursor.topicOfEnd)) {
+            throw new IllegalArgumentException(String.format("Cursor at end of topic '%s' can not be used with topic '%s'", cursor.topicOfEnd, topic));
+        }
+        this.client = client;
         this.topic = topic;
-        this.gcsTopicAvroFileCache = new TopicAvroFileCache(gcsRawdataUtils, topic, minFileListingIntervalSeconds);
+        this.keys = keys;
+        this.blockDatumReader = new RawdataMessageDatumReader(keys);
+        this.gcsTopicAvroFileCache = client.acquireTopicAvroFileCache(topic);
+        this.prefetcher = new AvroFilePrefetcher(topic, client.prefetchDepth, client.prefetchMaxBytes, client.prefetchedBytes,
+                client.prefetchDepth > 0 ? client.prefetchExecutor() : null);
         if (cursor == null) {
             seek(0);
+        } else if (cursor.end) {
+            seekToEnd();
         } else {
             seek(cursor.ulid.timestamp());
             try {
@@ -70,62 +91,159 @@ class AvroRawdataConsumer implements RawdataConsumer {
     @Override
     public RawdataMessage receive(int timeout, TimeUnit unit) throws InterruptedException, RawdataClosedException {
         final long start = System.currentTimeMillis();
+        RawdataMessage msg = nextMessageInActiveFile();
+        while (msg == null) {
+            Map.Entry<Long, RawdataAvroFile> nextEntry = findNextGCSBlob(timeout, unit, start);
+            if (nextEntry == null) return null; // timeout
+            activeBlobFromKeyRef.set(nextEntry.getKey());
+            setDataFileReader(nextEntry.getKey(), nextEntry.getValue());
+            msg = nextMessageInActiveFile();
+        }
+        return msg;
+    }
+
+    /**
+     * @return the next message that can be read without opening another file, or null if there is none
+     */
+    private RawdataMessage nextMessageInActiveFile() {
         RawdataMessage preloadedMessage = preloadedMessages.poll();
         if (preloadedMessage != null) {
             return preloadedMessage;
         }
-        DataFileReader<GenericRecord> dataFileReader = activeBlobDataFileReaderRef.get();
-        if (dataFileReader == null) {
-            Map.Entry<Long, RawdataAvroFile> nextEntry = findNextGCSBlob(timeout, unit, start);
-            if (nextEntry == null) return null; // timeout
-            activeBlobFromKeyRef.set(nextEntry.getKey());
-            dataFileReader = setDataFileReader(nextEntry.getValue());
+        DataFileReader<RawdataMessage> dataFileReader = activeBlobDataFileReaderRef.get();
+        if (client.decodeExecutor != null) {
+            return nextMessageOfDecodedBlocks(dataFileReader);
         }
-        if (!dataFileReader.hasNext()) {
-            Map.Entry<Long, RawdataAvroFile> nextEntry = findNextGCSBlob(timeout, unit, start);
-            if (nextEntry == null) return null; // timeout
-            activeBlobFromKeyRef.set(nextEntry.getKey());
-            RawdataAvroFile rawdataAvroFile = nextEntry.getValue();
-            setDataFileReader(rawdataAvroFile);
-            return receive(timeout, unit);
+        if (dataFileReader == null || !dataFileReader.hasNext()) {
+            return null;
         }
-        GenericRecord record = dataFileReader.next();
-        RawdataMessage msg = toRawdataMessage(record);
-        return msg;
+        if (client.lazyDecoding) {
+            // copy the block once, messages are decoded from the copy on demand
+            long count = dataFileReader.getBlockCount();
+            AvroRawdataMessageView.addAll(copyOfNextBlock(dataFileReader), count, keys, preloadedMessages);
+            return preloadedMessages.poll();
+        }
+        // decode all messages of the block in one pass, directly from the buffer of the reader
+        try {
+            long count = dataFileReader.getBlockCount();
+            ByteBuffer block = dataFileReader.nextBlock(); // re-used by the reader
+            blockDecoder = DecoderFactory.get().binaryDecoder(block.array(), block.arrayOffset() + block.position(), block.remaining(), blockDecoder);
+            for (long i = 0; i < count; i++) {
+                preloadedMessages.add(blockDatumReader.read(null, blockDecoder));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return preloadedMessages.poll();
     }
 
-    private Map.Entry<Long, RawdataAvroFile> findNextGCSBlob(int timeout, TimeUnit unit, long start) throws InterruptedException {
-        Long currentBlobKey = activeBlobFromKeyRef.get();
-        Map.Entry<Long, RawdataAvroFile> nextEntry = gcsTopicAvroFileCache.blobsByTimestamp().higherEntry(currentBlobKey);
-        while (nextEntry == null) {
-            // TODO the GCS file-listing poll-loop can be replaced with notifications from pub/sub
-            // TODO if so, the poll-loop should be a fallback when google-pub/sub is unavailable
-            long duration = System.currentTimeMillis() - start;
-            if (duration >= unit.toMillis(timeout)) {
-                return null; // timeout
+    /**
+     * Blocks are read and decompressed in order on this thread and handed to the decode executor, keeping up to
+     * decode-parallelism blocks in flight. Decoded blocks are delivered in the order they were read.
+     */
+    private RawdataMessage nextMessageOfDecodedBlocks(DataFileReader<RawdataMessage> dataFileReader) {
+        while (dataFileReader != null && decodingBlocks.size() < client.decodeParallelism && dataFileReader.hasNext()) {
+            long count = dataFileReader.getBlockCount();
+            byte[] block = copyOfNextBlock(dataFileReader);
+            decodingBlocks.add(CompletableFuture.supplyAsync(() -> decodeBlock(block, count, keys), client.decodeExecutor));
+        }
+        CompletableFuture<List<RawdataMessage>> decodedBlock = decodingBlocks.poll();
+        if (decodedBlock == null) {
+            return null;
+        }
+        preloadedMessages.addAll(decodedBlock.join());
+        return preloadedMessages.poll();
+    }
+
+    private static byte[] copyOfNextBlock(DataFileReader<?> dataFileReader) {
+        try {
+            ByteBuffer block = dataFileReader.nextBlock(); // re-used by the reader
+            byte[] bytes = new byte[block.remaining()];
+            block.get(bytes);
+            return bytes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static List<RawdataMessage> decodeBlock(byte[] block, long count, Set<String> keys) {
+        RawdataMessageDatumReader datumReader = new RawdataMessageDatumReader(keys);
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(block, null);
+        List<RawdataMessage> messages = new ArrayList<>((int) count);
+        try {
+            for (long i = 0; i < count; i++) {
+                messages.add(datumReader.read(null, decoder));
             }
-            Thread.sleep(500);
-            nextEntry = gcsTopicAvroFileCache.blobsByTimestamp().higherEntry(currentBlobKey);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return nextEntry;
+        return messages;
     }
 
-    static RawdataMessage toRawdataMessage(GenericRecord record) {
-        GenericData.Fixed id = (GenericData.Fixed) record.get("id");
-        ULID.Value ulid = ULID.fromBytes(id.bytes());
-        String orderingGroup = ofNullable(record.get("orderingGroup")).map(Object::toString).orElse(null);
-        long sequenceNumber = (Long) record.get("sequenceNumber");
-        String position = record.get("position").toString();
-        Map<Utf8, ByteBuffer> data = (Map<Utf8, ByteBuffer>) record.get("data");
-        Map<String, byte[]> map = data.entrySet().stream().collect(Collectors.toMap(e -> e.getKey().toString(), e -> e.getValue().array()));
+    @Override
+    public List<RawdataMessage> receiveBatch(int maxMessages, long maxBytes, int timeout, TimeUnit unit) throws InterruptedException, RawdataClosedException {
+        List<RawdataMessage> batch = new ArrayList<>(); // not re-used, the caller owns the returned list
+        RawdataMessage message = receive(timeout, unit);
+        if (message == null) {
+            return batch; // timeout
+        }
+        batch.add(message); // even if larger than maxBytes, so that the consumer makes progress
+        long bytes = dataLengthOf(message);
+        // take the remaining messages of the decoded block, then decode the next block of the file
+        while (batch.size() < maxMessages) {
+            RawdataMessage next = preloadedMessages.peekFirst();
+            if (next == null) {
+                next = nextMessageInActiveFile(); // null at end of file
+                if (next == null) {
+                    break;
+                }
+                preloadedMessages.addFirst(next);
+            }
+            long length = dataLengthOf(next);
+            if (bytes + length > maxBytes) {
+                break; // left for the next receive
+            }
+            preloadedMessages.pollFirst();
+            batch.add(next);
+            bytes += length;
+        }
+        return batch;
+    }
 
-        return RawdataMessage.builder()
-                .ulid(ulid)
-                .orderingGroup(orderingGroup)
-                .sequenceNumber(sequenceNumber)
-                .position(position)
-                .data(map)
-                .build();
+    /**
+     * @return the total length of the data values of message, without decoding the values of lazily decoded messages
+     */
+    static long dataLengthOf(RawdataMessage message) {
+        if (message instanceof AvroRawdataMessageView) {
+            return ((AvroRawdataMessageView) message).dataLength();
+        }
+        long length = 0;
+        for (byte[] value : message.data().values()) {
+            length += value.length;
+        }
+        return length;
+    }
+
+    private Map.Entry<Long, RawdataAvroFile> findNextGCSBlob(int timeout, TimeUnit unit, long start) throws InterruptedException {
+        Long currentBlobKey = activeBlobFromKeyRef.get();
+        for (; ; ) {
+            long notificationCount = gcsTopicAvroFileCache.notificationCount();
+            Map.Entry<Long, RawdataAvroFile> nextEntry = gcsTopicAvroFileCache.blobsByTimestamp().higherEntry(currentBlobKey);
+            if (nextEntry != null) {
+                return nextEntry;
+            }
+            long remaining = unit.toMillis(timeout) - (System.currentTimeMillis() - start);
+            if (remaining <= 0) {
+                return null; // timeout
+            }
+            AvroFileNotificationSource notificationSource = client.notificationSource;
+            if (notificationSource != null && notificationSource.isReliable()) {
+                // woken up as soon as a new file is available, no need to poll the file-listing
+                gcsTopicAvroFileCache.awaitNewFiles(notificationCount, remaining);
+            } else {
+                Thread.sleep(Math.min(500, remaining));
+            }
+        }
     }
 
     @Override
@@ -141,17 +259,11 @@ class AvroRawdataConsumer implements RawdataConsumer {
 
     @Override
     public void seek(long timestamp) {
-        preloadedMessages.clear();
-        DataFileReader<GenericRecord> previousDataFileReader = activeBlobDataFileReaderRef.getAndSet(null);
-        if (previousDataFileReader != null) {
-            try {
-                previousDataFileReader.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        closeActiveFile();
         NavigableMap<Long, RawdataAvroFile> blobByFrom = gcsTopicAvroFileCache.blobsByTimestamp();
-        Map.Entry<Long, RawdataAvroFile> firstEntryHigherOrEqual = blobByFrom.floorEntry(timestamp);
+        // the last messages of a file can have the same timestamp as the first message of the next file, start
+        // from a file that is strictly older when there is one
+        Map.Entry<Long, RawdataAvroFile> firstEntryHigherOrEqual = blobByFrom.lowerEntry(timestamp);
         if (firstEntryHigherOrEqual == null) {
             firstEntryHigherOrEqual = blobByFrom.ceilingEntry(timestamp);
         }
@@ -161,32 +273,81 @@ class AvroRawdataConsumer implements RawdataConsumer {
         }
         activeBlobFromKeyRef.set(firstEntryHigherOrEqual.getKey());
         RawdataAvroFile rawdataAvroFile = firstEntryHigherOrEqual.getValue();
-        DataFileReader<GenericRecord> dataFileReader = setDataFileReader(rawdataAvroFile);
-        GenericRecord record = null;
-        while (dataFileReader.hasNext()) {
-            try {
-                record = dataFileReader.next(record);
-                RawdataMessage message = toRawdataMessage(record);
-                long msgTimestamp = message.timestamp();
-                if (msgTimestamp >= timestamp) {
-                    preloadedMessages.add(message);
-                    return; // first match
+        DataFileReader<RawdataMessage> dataFileReader = setDataFileReader(firstEntryHigherOrEqual.getKey(), rawdataAvroFile);
+        if (timestamp > firstEntryHigherOrEqual.getKey()) {
+            // skip blocks that only contain messages older than timestamp
+            AvroBlockIndex blockIndex = client.blockIndexOf(rawdataAvroFile, dataFileReader);
+            long offset = blockIndex.offsetOfBlockToScanFrom(timestamp);
+            if (offset >= 0) {
+                try {
+                    dataFileReader.seek(offset);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
+            }
+        }
+        RawdataMessage message;
+        while ((message = nextMessageInActiveFile()) != null) {
+            long msgTimestamp = message.timestamp();
+            if (msgTimestamp >= timestamp) {
+                preloadedMessages.addFirst(message);
+                return; // first match
+            }
+        }
+    }
+
+    /**
+     * Position this consumer right after the last message of the topic without reading any file. Files are never
+     * appended to, so only files that are newer than the current last file can have messages after that message.
+     */
+    void seekToEnd() {
+        closeActiveFile();
+        Map.Entry<Long, RawdataAvroFile> lastEntry = gcsTopicAvroFileCache.blobsByTimestamp().lastEntry();
+        activeBlobFromKeyRef.set(lastEntry == null ? -1L : lastEntry.getKey());
+    }
+
+    private void closeActiveFile() {
+        preloadedMessages.clear();
+        cancelDecodingBlocks();
+        prefetcher.clear();
+        DataFileReader<RawdataMessage> previousDataFileReader = activeBlobDataFileReaderRef.getAndSet(null);
+        if (previousDataFileReader != null) {
+            try {
+                previousDataFileReader.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    private DataFileReader<GenericRecord> setDataFileReader(RawdataAvroFile rawdataAvroFile) {
-        DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(AvroRawdataProducer.schema);
-        DataFileReader<GenericRecord> dataFileReader;
+    /**
+     * Cancel the decoding of blocks that will not be delivered, so that blocks that have not started decoding are
+     * not decoded at all.
+     */
+    private void cancelDecodingBlocks() {
+        CompletableFuture<List<RawdataMessage>> decodingBlock;
+        while ((decodingBlock = decodingBlocks.poll()) != null) {
+            decodingBlock.cancel(false);
+        }
+    }
+
+    private DataFileReader<RawdataMessage> setDataFileReader(Long key, RawdataAvroFile rawdataAvroFile) {
+        DatumReader<RawdataMessage> datumReader = new RawdataMessageDatumReader(keys);
+        DataFileReader<RawdataMessage> dataFileReader;
         try {
-            dataFileReader = new DataFileReader<>(rawdataAvroFile.seekableInput(), datumReader);
+            SeekableInput seekableInput = prefetcher.take(key);
+            if (seekableInput == null) {
+                seekableInput = rawdataAvroFile.seekableInput();
+            }
+            dataFileReader = client.openDataFileReader(rawdataAvroFile, seekableInput, datumReader);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         activeBlobDataFileReaderRef.set(dataFileReader);
+        if (prefetcher.isEnabled()) {
+            // start reading the next files in the background while this one is being decoded
+            prefetcher.prefetch(gcsTopicAvroFileCache.blobsByTimestamp().tailMap(key, false));
+        }
         return dataFileReader;
     }
 
@@ -199,9 +360,11 @@ class AvroRawdataConsumer implements RawdataConsumer {
     public void close() {
         if (closed.compareAndSet(false, true)) {
             activeBlobFromKeyRef.set(null);
-            gcsTopicAvroFileCache.clear();
+            client.releaseTopicAvroFileCache(gcsTopicAvroFileCache);
             preloadedMessages.clear();
-            DataFileReader<GenericRecord> dataFileReader = activeBlobDataFileReaderRef.getAndSet(null);
+            cancelDecodingBlocks();
+            prefetcher.close();
+            DataFileReader<RawdataMessage> dataFileReader = activeBlobDataFileReaderRef.getAndSet(null);
             if (dataFileReader != null) {
                 try {
                     dataFileReader.close();
@@ -5,11 +5,26 @@ import io.descoped.rawdata.api.RawdataCursor;
 
 class AvroRawdataCursor implements RawdataCursor {
 
-    final ULID.Value ulid;
+    final ULID.Value ulid; // null for a cursor at end
     final boolean inclusive;
+    final String topicOfEnd; // only set for a cursor at end
+    final boolean end;
 
     AvroRawdataCursor(ULID.Value ulid, boolean inclusive) {
+        this(ulid, inclusive, null, false);
+    }
+
+    private AvroRawdataCursor(ULID.Value ulid, boolean inclusive, String topicOfEnd, boolean end) {
         this.ulid = ulid;
         this.inclusive = inclusive;
+        this.topicOfEnd = topicOfEnd;
+        this.end = end;
+    }
+
+    /**
+     * Cursor of the position right after the last message of topic at the time a consumer is created.
+     */
+    static AvroRawdataCursor atEndOf(String topic) {
+        return new AvroRawdataCursor(null, false, topic, true);
     }
 }
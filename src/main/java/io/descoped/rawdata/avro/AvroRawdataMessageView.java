@@ -0,0 +1,313 @@
+package io.descoped.rawdata.avro;
+
+import de.huxhorn.sulky.ulid.ULID;
+import io.descoped.rawdata.api.RawdataMessage;
+import org.apache.avro.Schema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A message that is decoded on demand from the binary encoded record in a block of an Avro file. Creating a view
+ * only locates the fields and data entries of the record, each value is decoded when first accessed, and data values
+ * are copied exactly from the block. All views of a block share the block bytes, which are kept in memory for as long
+ * as any of the views are referenced. When a set of keys is given, all other data entries are hidden from the view.
+ */
+class AvroRawdataMessageView implements RawdataMessage {
+
+    static final int ORDERING_GROUP_STRING_BRANCH = indexOfBranch(AvroRawdataProducer.schema.getField("orderingGroup").schema(), Schema.Type.STRING);
+    static final int ORDERING_GROUP_NULL_BRANCH = indexOfBranch(AvroRawdataProducer.schema.getField("orderingGroup").schema(), Schema.Type.NULL);
+
+    static int indexOfBranch(Schema unionSchema, Schema.Type type) {
+        List<Schema> types = unionSchema.getTypes();
+        for (int i = 0; i < types.size(); i++) {
+            if (types.get(i).getType() == type) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No " + type + " branch in union: " + unionSchema);
+    }
+
+    final byte[] block;
+    final Set<String> visibleKeys; // null means all keys
+    final int offset; // start of record, i.e. of the id
+    final int orderingGroupOffset;
+    final int sequenceNumberOffset;
+    final int positionOffset;
+    final int[] keyOffsets; // of all data entries, the value of an entry follows its key
+    final int end;
+
+    private ULID.Value ulid;
+    private String position;
+    private int[] visibleKeyOffsets;
+    private Set<String> keys;
+    private Map<String, byte[]> data;
+
+    /**
+     * Locate the fields of the record that starts at offset in block.
+     */
+    AvroRawdataMessageView(byte[] block, int offset, Set<String> visibleKeys) {
+        this.block = block;
+        this.visibleKeys = visibleKeys;
+        this.offset = offset;
+        this.orderingGroupOffset = offset + 16;
+        int pos = orderingGroupOffset;
+        long branch = readLong(pos);
+        pos = skipLong(pos);
+        if (branch == ORDERING_GROUP_STRING_BRANCH) {
+            pos = skipBytes(pos);
+        }
+        this.sequenceNumberOffset = pos;
+        pos = skipLong(pos);
+        this.positionOffset = pos;
+        pos = skipBytes(pos);
+        int[] keyOffsets = new int[0];
+        int entries = 0;
+        for (long count = readLong(pos); count != 0; count = readLong(pos)) {
+            pos = skipLong(pos);
+            if (count < 0) {
+                count = -count;
+                pos = skipLong(pos); // byte-size of map block
+            }
+            if (entries + count > keyOffsets.length) {
+                keyOffsets = Arrays.copyOf(keyOffsets, (int) (entries + count));
+            }
+            for (long i = 0; i < count; i++) {
+                keyOffsets[entries++] = pos;
+                pos = skipBytes(skipBytes(pos)); // key and value
+            }
+        }
+        this.keyOffsets = keyOffsets;
+        this.end = skipLong(pos);
+    }
+
+    /**
+     * Add views of all records in the block to target.
+     */
+    static void addAll(byte[] block, long count, Set<String> visibleKeys, Collection<? super RawdataMessage> target) {
+        int offset = 0;
+        for (long i = 0; i < count; i++) {
+            AvroRawdataMessageView view = new AvroRawdataMessageView(block, offset, visibleKeys);
+            target.add(view);
+            offset = view.end;
+        }
+    }
+
+    @Override
+    public ULID.Value ulid() {
+        if (ulid == null) {
+            ulid = new ULID.Value(readBigEndianLong(offset), readBigEndianLong(offset + 8));
+        }
+        return ulid;
+    }
+
+    @Override
+    public long timestamp() {
+        return ulid().timestamp();
+    }
+
+    @Override
+    public String orderingGroup() {
+        if (readLong(orderingGroupOffset) != ORDERING_GROUP_STRING_BRANCH) {
+            return null;
+        }
+        return readString(skipLong(orderingGroupOffset));
+    }
+
+    @Override
+    public long sequenceNumber() {
+        return readLong(sequenceNumberOffset);
+    }
+
+    @Override
+    public String position() {
+        if (position == null) {
+            position = readString(positionOffset);
+        }
+        return position;
+    }
+
+    @Override
+    public Set<String> keys() {
+        if (keys == null) {
+            Set<String> keys = new LinkedHashSet<>();
+            for (int keyOffset : visibleKeyOffsets()) {
+                keys.add(readString(keyOffset));
+            }
+            this.keys = Collections.unmodifiableSet(keys);
+        }
+        return keys;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        if (data != null) {
+            return data.get(key);
+        }
+        if (visibleKeys != null && !visibleKeys.contains(key)) {
+            return null;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        for (int keyOffset : visibleKeyOffsets()) {
+            int keyLength = (int) readLong(keyOffset);
+            int keyStart = skipLong(keyOffset);
+            if (Arrays.equals(block, keyStart, keyStart + keyLength, keyBytes, 0, keyBytes.length)) {
+                return readBytes(keyStart + keyLength);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, byte[]> data() {
+        if (data == null) {
+            Map<String, byte[]> map = new LinkedHashMap<>();
+            for (int keyOffset : visibleKeyOffsets()) {
+                map.put(readString(keyOffset), readBytes(skipBytes(keyOffset)));
+            }
+            data = Collections.unmodifiableMap(map);
+        }
+        return data;
+    }
+
+    /**
+     * @return the total length of the visible data values, read from the encoded lengths without decoding the values
+     */
+    long dataLength() {
+        long length = 0;
+        for (int keyOffset : visibleKeyOffsets()) {
+            length += readLong(skipBytes(keyOffset));
+        }
+        return length;
+    }
+
+    /**
+     * @return the offsets of the keys of the visible data entries, filtered from all entries on first use
+     */
+    private int[] visibleKeyOffsets() {
+        if (visibleKeyOffsets == null) {
+            if (visibleKeys == null) {
+                visibleKeyOffsets = keyOffsets;
+            } else {
+                visibleKeyOffsets = Arrays.stream(keyOffsets)
+                        .filter(keyOffset -> visibleKeys.contains(readString(keyOffset)))
+                        .toArray();
+            }
+        }
+        return visibleKeyOffsets;
+    }
+
+    private long readBigEndianLong(int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (block[pos + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @return the zig-zag encoded variable-length long at pos
+     */
+    private long readLong(int pos) {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = block[pos++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int skipLong(int pos) {
+        int last = pos;
+        while ((block[last] & 0x80) != 0) {
+            last++;
+        }
+        return last + 1;
+    }
+
+    /**
+     * @return position after the length-prefixed bytes or string at pos
+     */
+    private int skipBytes(int pos) {
+        int length = (int) readLong(pos);
+        return skipLong(pos) + length;
+    }
+
+    private String readString(int pos) {
+        int length = (int) readLong(pos);
+        return new String(block, skipLong(pos), length, StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes(int pos) {
+        int length = (int) readLong(pos);
+        int start = skipLong(pos);
+        return Arrays.copyOfRange(block, start, start + length);
+    }
+
+    /**
+     * Equal to another view with the same field values and visible data, data values are compared by content. A view
+     * is never equal to a message of another class, e.g. one built by {@link RawdataMessage#builder()}, as that
+     * message would not be equal to the view.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        AvroRawdataMessageView that = (AvroRawdataMessageView) o;
+        if (block == that.block && offset == that.offset && Objects.equals(visibleKeys, that.visibleKeys)) {
+            return true;
+        }
+        if (!ulid().equals(that.ulid())
+                || sequenceNumber() != that.sequenceNumber()
+                || !Objects.equals(orderingGroup(), that.orderingGroup())
+                || !position().equals(that.position())
+                || !keys().equals(that.keys())) {
+            return false;
+        }
+        for (String key : keys()) {
+            if (!Arrays.equals(get(key), that.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(ulid(), orderingGroup(), sequenceNumber(), position());
+        for (int keyOffset : visibleKeyOffsets()) {
+            int valueOffset = skipBytes(keyOffset);
+            int valueStart = skipLong(valueOffset);
+            int valueHash = 1;
+            for (int i = valueStart, valueEnd = valueStart + (int) readLong(valueOffset); i < valueEnd; i++) {
+                valueHash = 31 * valueHash + block[i]; // same as Arrays.hashCode of the value
+            }
+            result = 31 * result + readString(keyOffset).hashCode();
+            result = 31 * result + valueHash;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "AvroRawdataMessageView{" +
+                "ulid=" + ulid() +
+                ", position='" + position() + '\'' +
+                '}';
+    }
+}
@@ -4,41 +4,50 @@ import de.huxhorn.sulky.ulid.ULID;
 import io.descoped.rawdata.api.RawdataClosedException;
 import io.descoped.rawdata.api.RawdataMessage;
 import io.descoped.rawdata.api.RawdataProducer;
+import io.descoped.rawdata.avro.api.ExtendedRawdataClient;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
 import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.file.SeekableFileInput;
-import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumReader;
-import org.apache.avro.generic.GenericDatumWriter;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
-import static java.util.Optional.ofNullable;
-
-class AvroRawdataProducer implements RawdataProducer {
+class AvroRawdataProducer implements ExtendedRawdataClient.Producer {
 
     static final Logger LOG = LoggerFactory.getLogger(AvroRawdataProducer.class);
 
+
     static final Schema schema = SchemaBuilder.record("RawdataMessage")
             .fields()
             .name("id").type().fixed("ulid").size(16).noDefault()
@@ -48,6 +57,8 @@ class AvroRawdataProducer implements RawdataProducer {
             .name("data").type().map().values().bytesType().noDefault()
             .endRecord();
 
+    static final ThreadLocal<RecordEncoder> recordEncoder = ThreadLocal.withInitial(RecordEncoder::new);
+
     final AtomicBoolean closed = new AtomicBoolean(false);
 
     final ULID ulid = new ULID();
@@ -60,36 +71,163 @@ class AvroRawdataProducer implements RawdataProducer {
     final int avroSyncInterval;
     final String topic;
 
-    final AtomicReference<DataFileWriter<GenericRecord>> dataFileWriterRef = new AtomicReference<>();
+    final AtomicReference<DataFileWriter<RawdataMessage>> dataFileWriterRef = new AtomicReference<>();
     final Path topicFolder;
     final AtomicReference<Path> pathRef = new AtomicReference<>();
 
     final AtomicLong timestampOfFirstMessageInWindow = new AtomicLong(-1);
     final AvroFileMetadata activeAvrofileMetadata;
-    final AtomicLong avroBytesWrittenInBlock = new AtomicLong(0);
+    final AtomicLong avroBytesWrittenInBlock = new AtomicLong(0); // encoded records of the block being built
+    final AtomicLong avroBytesFlushedToFile = new AtomicLong(0); // header and completed blocks of the active file
+    AvroBlockIndex.Builder blockIndexBuilder; // guarded by lock, handed over to the upload of the file
+    final AtomicLong offsetOfFirstBlock = new AtomicLong(0);
+    boolean rolloverPending = false; // guarded by lock, size limit reached while a new file would collide with the active file
+    boolean maxBytesExceededWarned = false; // guarded by lock, warned that the active file grows beyond max bytes
 
     final ReentrantLock lock = new ReentrantLock();
 
     final Thread uploadThread;
     final BlockingQueue<Upload> uploadQueue = new LinkedBlockingQueue<>();
 
+    final int pipelineCapacity;
+    final long pipelineMaxWaitMillis;
+    final Queue<PendingPublish> pipeline = new ConcurrentLinkedQueue<>();
+    final Semaphore pipelinePermits;
+    final Thread writerThread;
+
+    final long commitMaxDelayMillis;
+    final List<CompletableFuture<Void>> acknowledgementsOfActiveFile = new ArrayList<>(); // guarded by lock
+    final ScheduledThreadPoolExecutor commitScheduler;
+    ScheduledFuture<?> scheduledCommit; // guarded by lock, commit of the active file, cancelled when the file is closed
+
+    /**
+     * Messages handed to the writer thread, and the future to complete when they have been written.
+     */
+    static class PendingPublish {
+        final RawdataMessage[] messages;
+        final byte[][] records;
+        final CompletableFuture<Void> acknowledgement; // null unless published with acknowledgement
+        final int permits;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        PendingPublish(RawdataMessage[] messages, byte[][] records, CompletableFuture<Void> acknowledgement, int permits) {
+            this.messages = messages;
+            this.records = records;
+            this.acknowledgement = acknowledgement;
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * Encodes messages to the binary form of records of the schema, reusing its buffer and encoder between messages.
+     * Not thread-safe, every publishing thread has its own.
+     */
+    static class RecordEncoder {
+        final DatumWriter<RawdataMessage> datumWriter = new RawdataMessageDatumWriter();
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        BinaryEncoder encoder;
+
+        /**
+         * @return the encoded record, the id is the first 16 bytes and is all zeros if the message has no ulid
+         */
+        byte[] encode(RawdataMessage message) {
+            buffer.reset();
+            encoder = EncoderFactory.get().directBinaryEncoder(buffer, encoder);
+            try {
+                datumWriter.write(message, encoder);
+                encoder.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return buffer.toByteArray();
+        }
+    }
+
+    /**
+     * Encode the messages on the calling thread, so that only appending the encoded records is done under lock.
+     */
+    static byte[][] encode(RawdataMessage[] messages) {
+        RecordEncoder encoder = recordEncoder.get();
+        byte[][] records = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            records[i] = encoder.encode(messages[i]);
+        }
+        return records;
+    }
+
+    /**
+     * Counts the bytes written through it to the file.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        final AtomicLong count;
+
+        CountingOutputStream(OutputStream out, AtomicLong count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.addAndGet(len);
+        }
+    }
+
+    /**
+     * A closed file to be uploaded. The block index is built and stored next to the target by the upload thread,
+     * before the file itself is copied.
+     */
     static class Upload {
         final Path source;
-        final RawdataAvroFile target;
+        final AvroFileMetadata metadata;
+        final AvroBlockIndex.Builder blockIndexBuilder;
+        final long offsetOfFirstBlock;
+        final List<CompletableFuture<Void>> acknowledgements; // completed when the upload is done
 
-        Upload(Path source, RawdataAvroFile target) {
+        Upload(Path source, AvroFileMetadata metadata, AvroBlockIndex.Builder blockIndexBuilder, long offsetOfFirstBlock, List<CompletableFuture<Void>> acknowledgements) {
             this.source = source;
-            this.target = target;
+            this.metadata = metadata;
+            this.blockIndexBuilder = blockIndexBuilder;
+            this.offsetOfFirstBlock = offsetOfFirstBlock;
+            this.acknowledgements = acknowledgements;
+        }
+
+        void acknowledge() {
+            for (CompletableFuture<Void> acknowledgement : acknowledgements) {
+                acknowledgement.complete(null);
+            }
+        }
+
+        void fail(Throwable t) {
+            for (CompletableFuture<Void> acknowledgement : acknowledgements) {
+                acknowledgement.completeExceptionally(t);
+            }
         }
     }
 
-    AvroRawdataProducer(AvroRawdataUtils gcsRawdataUtils, Path tmpFolder, long avroMaxSeconds, long avroMaxBytes, int avroSyncInterval, String topic) {
+    AvroRawdataProducer(AvroRawdataUtils gcsRawdataUtils, Path tmpFolder, long avroMaxSeconds, long avroMaxBytes, int avroSyncInterval, String topic, int pipelineCapacity, long pipelineMaxWaitMillis, long commitMaxDelayMillis) {
         this.gcsRawdataUtils = gcsRawdataUtils;
         this.tmpFolder = tmpFolder;
         this.avroMaxSeconds = avroMaxSeconds;
         this.avroMaxBytes = avroMaxBytes;
         this.avroSyncInterval = avroSyncInterval;
         this.topic = topic;
+        this.pipelineCapacity = pipelineCapacity;
+        this.pipelineMaxWaitMillis = pipelineMaxWaitMillis;
+        this.pipelinePermits = pipelineCapacity > 0 ? new Semaphore(pipelineCapacity) : null;
+        this.commitMaxDelayMillis = commitMaxDelayMillis;
+        this.commitScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "rawdata-producer-commit-" + topic);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.commitScheduler.setRemoveOnCancelPolicy(true);
         this.activeAvrofileMetadata = gcsRawdataUtils.newAvrofileMetadata();
         this.topicFolder = tmpFolder.resolve(topic);
         try {
@@ -105,7 +243,7 @@ class AvroRawdataProducer implements RawdataProducer {
                     upload = uploadQueue.take(); // wait for upload task
                 } catch (InterruptedException e) {
                     LOG.warn("Closing producer topic {}", topic);
-                    close();
+                    closeAfterFailedUpload(null, new RawdataClosedException());
                     LOG.warn("Upload thread interrupted. Upload thread for producer of topic {} will now die.", topic);
                     return;
                 }
@@ -114,22 +252,82 @@ class AvroRawdataProducer implements RawdataProducer {
                         LOG.info("Upload thread for producer of topic {} received close signal and will now die.", topic);
                         return;
                     }
-                    verifySeekableToLastBlockOffsetAsGivenByFilename(upload.source, upload.target.getOffsetOfLastBlock());
+                    RawdataAvroFile target = upload.metadata.toRawdataAvroFile(topic);
+                    verifySeekableToLastBlockOffsetAsGivenByFilename(upload.source, target.getOffsetOfLastBlock());
                     String fileSize = AvroRawdataUtils.humanReadableByteCount(upload.source.toFile().length(), false);
-                    LOG.info("Copying Avro file {} ({}) to target: {}", upload.source.getFileName(), fileSize, upload.target);
-                    upload.target.copyFrom(upload.source);
+                    LOG.info("Copying Avro file {} ({}) to target: {}", upload.source.getFileName(), fileSize, target);
+                    target.writeBlockIndex(upload.blockIndexBuilder.build().toBytes(upload.offsetOfFirstBlock));
+                    target.copyFrom(upload.source);
+                    upload.acknowledge();
                     Files.delete(upload.source);
                     LOG.info("Copy COMPLETE! Deleted Avro file {}", upload.source.getFileName());
                 } catch (Throwable t) {
-                    LOG.error(String.format("While uploading file %s to target %s", upload.source.getFileName(), upload.target), t);
+                    LOG.error(String.format("While uploading file %s of topic %s", upload.source.getFileName(), topic), t);
                     LOG.warn("Closing producer topic {}", topic);
-                    close();
+                    closeAfterFailedUpload(upload, t);
                     LOG.warn("Upload thread for producer of topic {} will now die.", topic);
                     return;
                 }
             }
         });
         this.uploadThread.start();
+        if (pipelineCapacity > 0) {
+            this.writerThread = new Thread(this::writePipelinedMessages, "rawdata-producer-writer-" + topic);
+            this.writerThread.setDaemon(true);
+            this.writerThread.start();
+        } else {
+            this.writerThread = null;
+        }
+    }
+
+    /**
+     * Loop of the writer thread in pipelined mode. All available messages are drained and written in one go, under a
+     * single acquisition of lock, and the thread is parked while there is nothing to write. Exits when the producer
+     * has been closed and there is nothing more to write.
+     */
+    private void writePipelinedMessages() {
+        List<PendingPublish> batch = new ArrayList<>();
+        for (; ; ) {
+            PendingPublish pendingPublish;
+            while ((pendingPublish = pipeline.poll()) != null) {
+                batch.add(pendingPublish);
+            }
+            if (batch.isEmpty()) {
+                if (closed.get()) {
+                    return;
+                }
+                LockSupport.park(this); // unparked by enqueue and close
+                continue;
+            }
+            Throwable[] failures = new Throwable[batch.size()];
+            try {
+                lockOrFail();
+                try {
+                    for (int i = 0; i < batch.size(); i++) {
+                        PendingPublish published = batch.get(i);
+                        try {
+                            appendMessages(published.messages, published.records, published.acknowledgement);
+                        } catch (Throwable t) {
+                            failures[i] = t;
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } catch (Throwable t) {
+                Arrays.fill(failures, t);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                PendingPublish published = batch.get(i);
+                pipelinePermits.release(published.permits);
+                if (failures[i] == null) {
+                    published.written.complete(null);
+                } else {
+                    published.written.completeExceptionally(failures[i]);
+                }
+            }
+            batch.clear();
+        }
     }
 
     private void createOrOverwriteLocalAvroFile() {
@@ -144,14 +342,21 @@ class AvroRawdataProducer implements RawdataProducer {
             Path path = Files.createTempFile(topicFolder, "", ".avro");
             pathRef.set(path);
             activeAvrofileMetadata.clear();
-            DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(schema);
-            DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(datumWriter);
+            blockIndexBuilder = new AvroBlockIndex.Builder();
+            rolloverPending = false;
+            maxBytesExceededWarned = false;
+            DataFileWriter<RawdataMessage> dataFileWriter = new DataFileWriter<>(new RawdataMessageDatumWriter());
             dataFileWriter.setSyncInterval(2 * avroSyncInterval);
             dataFileWriter.setFlushOnEveryBlock(true);
             dataFileWriterRef.set(dataFileWriter);
-            dataFileWriter.create(schema, path.toFile());
+            avroBytesFlushedToFile.set(0);
+            avroBytesWrittenInBlock.set(0);
+            dataFileWriter.create(schema, new CountingOutputStream(new FileOutputStream(path.toFile()), avroBytesFlushedToFile));
+            dataFileWriter.flush(); // count header
             long lastSyncPosition = dataFileWriter.sync(); // position of first block
             activeAvrofileMetadata.setSyncOfLastBlock(lastSyncPosition);
+            offsetOfFirstBlock.set(lastSyncPosition);
+            blockIndexBuilder.startBlock(lastSyncPosition);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -168,7 +373,11 @@ class AvroRawdataProducer implements RawdataProducer {
             throw new RuntimeException(e);
         }
         try {
-            DataFileWriter<GenericRecord> dataFileWriter = dataFileWriterRef.getAndSet(null);
+            if (scheduledCommit != null) {
+                scheduledCommit.cancel(false);
+                scheduledCommit = null;
+            }
+            DataFileWriter<RawdataMessage> dataFileWriter = dataFileWriterRef.getAndSet(null);
             if (dataFileWriter != null) {
                 dataFileWriter.flush();
                 dataFileWriter.close();
@@ -176,8 +385,15 @@ class AvroRawdataProducer implements RawdataProducer {
             Path path = pathRef.get();
             if (path != null) {
                 if (activeAvrofileMetadata.getCount() > 0) {
-                    RawdataAvroFile rawdataAvroFile = activeAvrofileMetadata.toRawdataAvroFile(topic);
-                    uploadQueue.add(new Upload(path, rawdataAvroFile)); // schedule upload asynchronously
+                    AvroFileMetadata metadata = gcsRawdataUtils.newAvrofileMetadata();
+                    metadata.setIdOfFirstRecord(activeAvrofileMetadata.getIdOfFirstRecord());
+                    metadata.setPositionOfFirstRecord(activeAvrofileMetadata.getPositionOfFirstRecord());
+                    metadata.incrementCounter(activeAvrofileMetadata.getCount());
+                    metadata.setSyncOfLastBlock(activeAvrofileMetadata.getSyncOfLastBlock());
+                    List<CompletableFuture<Void>> acknowledgements = new ArrayList<>(acknowledgementsOfActiveFile);
+                    acknowledgementsOfActiveFile.clear();
+                    // schedule upload asynchronously, the block index is stored by the upload thread
+                    uploadQueue.add(new Upload(path, metadata, blockIndexBuilder, offsetOfFirstBlock.get(), acknowledgements));
                 } else {
                     // no records, no need to write file to GCS
                 }
@@ -190,8 +406,7 @@ class AvroRawdataProducer implements RawdataProducer {
     }
 
     static void verifySeekableToLastBlockOffsetAsGivenByFilename(Path path, long offsetOfLastBlock) throws IOException {
-        DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(AvroRawdataProducer.schema);
-        try (DataFileReader<GenericRecord> dataFileReader = new DataFileReader<>(new SeekableFileInput(path.toFile()), datumReader)) {
+        try (DataFileReader<RawdataMessage> dataFileReader = new DataFileReader<>(new SeekableFileInput(path.toFile()), new RawdataMessageDatumReader(null))) {
             dataFileReader.seek(offsetOfLastBlock);
             dataFileReader.hasNext(); // will throw an exception if offset is wrong
         }
@@ -207,6 +422,90 @@ class AvroRawdataProducer implements RawdataProducer {
         if (isClosed()) {
             throw new RawdataClosedException();
         }
+        if (writerThread != null) {
+            try {
+                enqueue(messages, null).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            return;
+        }
+        writeMessages(messages, encode(messages), null);
+    }
+
+    /**
+     * Messages are written before this method returns unless the producer is pipelined, in which case they are
+     * written by the writer thread.
+     */
+    @Override
+    public CompletableFuture<Void> publishAcknowledged(RawdataMessage... messages) throws RawdataClosedException {
+        if (isClosed()) {
+            throw new RawdataClosedException();
+        }
+        if (messages.length == 0) {
+            return CompletableFuture.completedFuture(null); // nothing to store
+        }
+        CompletableFuture<Void> acknowledgement = new CompletableFuture<>();
+        if (writerThread != null) {
+            enqueue(messages, acknowledgement).whenComplete((result, throwable) -> {
+                if (throwable != null) {
+                    acknowledgement.completeExceptionally(throwable);
+                }
+            });
+            return acknowledgement;
+        }
+        try {
+            writeMessages(messages, encode(messages), acknowledgement);
+        } catch (RuntimeException e) {
+            acknowledgement.completeExceptionally(e);
+        }
+        return acknowledgement;
+    }
+
+    /**
+     * Hand messages to the writer thread, waiting for capacity in the pipeline if it is full.
+     *
+     * @return a future that is completed when the messages have been written
+     */
+    private CompletableFuture<Void> enqueue(RawdataMessage[] messages, CompletableFuture<Void> acknowledgement) {
+        byte[][] records = encode(messages);
+        int permits = Math.max(1, Math.min(messages.length, pipelineCapacity));
+        try {
+            if (!pipelinePermits.tryAcquire(permits, pipelineMaxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException(String.format("Pipeline of producer of topic %s has been full for %d ms", topic, pipelineMaxWaitMillis));
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        PendingPublish pendingPublish = new PendingPublish(messages, records, acknowledgement, permits);
+        pipeline.add(pendingPublish);
+        LockSupport.unpark(writerThread);
+        if (isClosed() && pipeline.remove(pendingPublish)) {
+            // closed concurrently, the writer thread might have stopped before seeing the messages
+            pipelinePermits.release(permits);
+            pendingPublish.written.completeExceptionally(new RawdataClosedException());
+        }
+        return pendingPublish.written;
+    }
+
+    /**
+     * Append the records encoded from messages to the active file.
+     *
+     * @param acknowledgement if not null, completed when the file holding the last of the messages has been uploaded
+     */
+    private void writeMessages(RawdataMessage[] messages, byte[][] records, CompletableFuture<Void> acknowledgement) {
+        lockOrFail();
+        try {
+            appendMessages(messages, records, acknowledgement);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lockOrFail() {
         try {
             if (!lock.tryLock(5, TimeUnit.MINUTES)) {
                 throw new IllegalStateException("Unable to acquire lock within 5 minutes");
@@ -214,67 +513,127 @@ class AvroRawdataProducer implements RawdataProducer {
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        try {
-            for (RawdataMessage message : messages) {
-                long now = System.currentTimeMillis();
-                timestampOfFirstMessageInWindow.compareAndSet(-1, now);
+    }
 
-                boolean timeLimitExceeded = timestampOfFirstMessageInWindow.get() + 1000 * avroMaxSeconds < now;
-                if (timeLimitExceeded) {
-                    closeAvroFileAndTriggerAsyncUploadToGCS();
-                    createOrOverwriteLocalAvroFile();
-                    timestampOfFirstMessageInWindow.set(now);
-                }
+    /**
+     * Append the records encoded from messages to the active file, rolling over to a new file when a limit is
+     * exceeded. Must be called while holding lock.
+     */
+    private void appendMessages(RawdataMessage[] messages, byte[][] records, CompletableFuture<Void> acknowledgement) {
+        for (int i = 0; i < messages.length; i++) {
+            RawdataMessage message = messages[i];
+            byte[] record = records[i];
+            long now = System.currentTimeMillis();
+            timestampOfFirstMessageInWindow.compareAndSet(-1, now);
 
-                ULID.Value ulidValue = message.ulid();
-                if (ulidValue == null) {
-                    ulidValue = RawdataProducer.nextMonotonicUlid(ulid, prevUlid.get());
-                }
-                prevUlid.set(ulidValue);
+            ULID.Value ulidValue = message.ulid();
+            if (ulidValue == null) {
+                ulidValue = RawdataProducer.nextMonotonicUlid(ulid, prevUlid.get());
+                System.arraycopy(ulidValue.toBytes(), 0, record, 0, 16);
+            }
 
-                activeAvrofileMetadata.setIdOfFirstRecord(ulidValue);
-                activeAvrofileMetadata.setPositionOfFirstRecord(message.position());
+            boolean timeLimitExceeded = timestampOfFirstMessageInWindow.get() + 1000 * avroMaxSeconds < now;
+            if ((timeLimitExceeded || rolloverPending) && canStartNewFileWith(ulidValue)) {
+                closeAvroFileAndTriggerAsyncUploadToGCS();
+                createOrOverwriteLocalAvroFile();
+                timestampOfFirstMessageInWindow.set(now);
+            } else if (rolloverPending && !maxBytesExceededWarned) {
+                // messages of the millisecond of the active file can only be written to it
+                LOG.warn("Active file of producer of topic {} exceeds avro-file.max.bytes {}, as more messages are published in millisecond {} of its key", topic, avroMaxBytes, ulidValue.timestamp());
+                maxBytesExceededWarned = true;
+            }
+            prevUlid.set(ulidValue);
 
-                try {
-                    GenericRecord record = new GenericData.Record(schema);
-                    record.put("id", new GenericData.Fixed(schema.getField("id").schema(), ulidValue.toBytes()));
-                    record.put("orderingGroup", message.orderingGroup());
-                    record.put("sequenceNumber", message.sequenceNumber());
-                    record.put("position", message.position());
-                    record.put("data", message.data().entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> ByteBuffer.wrap(e.getValue()))));
-
-                    if (avroBytesWrittenInBlock.get() >= avroSyncInterval) {
-                        // start new block in avro file
-                        long lastSyncPosition = dataFileWriterRef.get().sync();
-                        activeAvrofileMetadata.setSyncOfLastBlock(lastSyncPosition);
-                        avroBytesWrittenInBlock.set(0);
-                    }
-                    dataFileWriterRef.get().append(record);
-                    activeAvrofileMetadata.incrementCounter(1);
-                    avroBytesWrittenInBlock.addAndGet(estimateAvroSizeOfRawdataMessage(message));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+            activeAvrofileMetadata.setIdOfFirstRecord(ulidValue);
+            activeAvrofileMetadata.setPositionOfFirstRecord(message.position());
+
+            try {
+                long bytesInBlock = avroBytesWrittenInBlock.get();
+                if (bytesInBlock > 0 && bytesInBlock + record.length > avroSyncInterval) {
+                    // start new block in avro file, so that no block exceeds the sync interval unless a single record does
+                    long lastSyncPosition = dataFileWriterRef.get().sync();
+                    activeAvrofileMetadata.setSyncOfLastBlock(lastSyncPosition);
+                    blockIndexBuilder.startBlock(lastSyncPosition);
+                    avroBytesWrittenInBlock.set(0);
                 }
+                dataFileWriterRef.get().appendEncoded(ByteBuffer.wrap(record));
+                blockIndexBuilder.record(ulidValue, message.position());
+                activeAvrofileMetadata.incrementCounter(1);
+                avroBytesWrittenInBlock.addAndGet(record.length);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (acknowledgement != null && i == messages.length - 1) {
+                addAcknowledgementOfActiveFile(acknowledgement);
+            }
 
-                boolean sizeLimitExceeded = pathRef.get().toFile().length() > avroMaxBytes;
-                if (sizeLimitExceeded) {
+            boolean sizeLimitExceeded = avroBytesFlushedToFile.get() + avroBytesWrittenInBlock.get() > avroMaxBytes;
+            if (sizeLimitExceeded) {
+                if (ulidValue.timestamp() > activeAvrofileMetadata.getIdOfFirstRecord().timestamp()) {
+                    // the next generated ulid is not older than this one, and can not collide with the key of this file
                     closeAvroFileAndTriggerAsyncUploadToGCS();
                     createOrOverwriteLocalAvroFile();
+                } else {
+                    rolloverPending = true;
                 }
             }
-        } finally {
-            lock.unlock();
         }
     }
 
-    static long estimateAvroSizeOfRawdataMessage(RawdataMessage message) {
-        return 16 + // ulid
-                2 + ofNullable(message.orderingGroup()).map(String::length).orElse(0) + // orderingGroup
-                6 + // sequenceNumber
-                2 + message.position().length() // position
-                + message.data().entrySet().stream()
-                .map(e -> 2L + e.getKey().length() + 4 + e.getValue().length)
-                .reduce(0L, Long::sum);
+    /**
+     * Files are keyed by the timestamp of their first message, a new file must not start in the same millisecond as
+     * the active file or one of them would shadow the other in listings. Must be called while holding lock.
+     */
+    private boolean canStartNewFileWith(ULID.Value firstUlidOfNewFile) {
+        ULID.Value idOfFirstRecord = activeAvrofileMetadata.getIdOfFirstRecord();
+        return idOfFirstRecord == null || idOfFirstRecord.timestamp() != firstUlidOfNewFile.timestamp();
+    }
+
+    /**
+     * Complete acknowledgement when the active file is uploaded, and make sure that it is uploaded in time by
+     * scheduling a rollover when the first acknowledgement is added to the file. Must be called while holding lock.
+     */
+    private void addAcknowledgementOfActiveFile(CompletableFuture<Void> acknowledgement) {
+        if (acknowledgementsOfActiveFile.isEmpty()) {
+            scheduleCommit();
+        }
+        acknowledgementsOfActiveFile.add(acknowledgement);
+    }
+
+    /**
+     * Commit the active file within the max commit delay. Only files that hold acknowledged messages are committed on
+     * a timer, other files are committed when the window has passed and the next message is published, or when the
+     * producer is closed. Must be called while holding lock.
+     */
+    private void scheduleCommit() {
+        Path path = pathRef.get();
+        scheduledCommit = commitScheduler.schedule(() -> commitIfActive(path), commitMaxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Roll over to a new file if the file at path is still the active file, which uploads it.
+     */
+    private void commitIfActive(Path path) {
+        try {
+            if (!lock.tryLock(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Unable to acquire lock within 5 minutes");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            if (isClosed() || pathRef.get() != path) {
+                return; // rolled over or closed while this commit was waiting for lock
+            }
+            closeAvroFileAndTriggerAsyncUploadToGCS();
+            createOrOverwriteLocalAvroFile();
+            timestampOfFirstMessageInWindow.set(-1);
+        } catch (Throwable t) {
+            LOG.error(String.format("While committing file %s of producer of topic %s", path.getFileName(), topic), t);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -282,6 +641,9 @@ class AvroRawdataProducer implements RawdataProducer {
         if (isClosed()) {
             throw new RawdataClosedException();
         }
+        if (writerThread != null) {
+            return enqueue(messages, null);
+        }
         return CompletableFuture.runAsync(() -> publish(messages));
     }
 
@@ -293,14 +655,80 @@ class AvroRawdataProducer implements RawdataProducer {
     @Override
     public void close() {
         if (closed.compareAndSet(false, true)) {
+            stopWriterThread();
             closeAvroFileAndTriggerAsyncUploadToGCS();
-            uploadQueue.add(new Upload(null, null)); // send close signal to upload-thread.
+            uploadQueue.add(new Upload(null, null, null, 0, List.of())); // send close signal to upload-thread.
         }
         try {
-            // all callers must wait for all uploads to complete
+            // all callers must wait for all uploads to complete, the upload thread never calls close itself
             uploadThread.join();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
+        commitScheduler.shutdownNow();
+        failUploadsNotTaken();
+    }
+
+    /**
+     * Close the producer on the upload thread after a failed upload. The producer is closed before the failure is
+     * reported, so that a publisher that sees its acknowledgement fail also sees the producer closed. The active file
+     * and all files waiting to be uploaded are abandoned and deleted before their acknowledgements fail.
+     *
+     * @param upload the upload that failed, or null if the upload thread was interrupted
+     */
+    private void closeAfterFailedUpload(Upload upload, Throwable failure) {
+        closed.set(true);
+        stopWriterThread();
+        try {
+            closeAvroFileAndTriggerAsyncUploadToGCS(); // queued for failUploadsNotTaken
+        } catch (RuntimeException e) {
+            LOG.warn("While closing active file of producer of topic {}", topic, e);
+        }
+        commitScheduler.shutdownNow();
+        deleteLocalFile(pathRef.get()); // active file, if it had no records and was not queued
+        failUploadsNotTaken();
+        if (upload != null) {
+            deleteLocalFile(upload.source);
+            upload.fail(failure);
+        }
+    }
+
+    /**
+     * Let the writer thread write all messages handed to it before the file is closed, and fail the messages that
+     * were handed to it after it stopped. Called after closed has been set.
+     */
+    private void stopWriterThread() {
+        if (writerThread == null) {
+            return;
+        }
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        PendingPublish pendingPublish;
+        while ((pendingPublish = pipeline.poll()) != null) {
+            pendingPublish.written.completeExceptionally(new RawdataClosedException());
+        }
+    }
+
+    private void failUploadsNotTaken() {
+        Upload pendingUpload;
+        while ((pendingUpload = uploadQueue.poll()) != null) {
+            deleteLocalFile(pendingUpload.source);
+            pendingUpload.fail(new RawdataClosedException());
+        }
+    }
+
+    private void deleteLocalFile(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete file {} of producer of topic {}", path.getFileName(), topic, e);
+        }
     }
 }
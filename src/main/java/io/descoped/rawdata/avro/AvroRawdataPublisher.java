@@ -0,0 +1,188 @@
+package io.descoped.rawdata.avro;
+
+import io.descoped.rawdata.api.RawdataClosedException;
+import io.descoped.rawdata.api.RawdataMessage;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the messages of a topic to any number of subscribers, each subscription reads the topic with a consumer
+ * of its own. Messages are only read from files when there is outstanding demand, and at most as many messages as
+ * requested are read ahead. Reading and delivery runs as tasks on the executor, and no thread is parked while
+ * waiting for new files, polls are timed by the retry executor which only hands the drain back to the executor. A
+ * subscription that has caught up with the topic is resumed by a new-file notification when the notification source
+ * of the client is reliable, and by polling otherwise. Notified subscriptions still poll at a longer interval, in case
+ * a notification is lost.
+ */
+class AvroRawdataPublisher implements Flow.Publisher<RawdataMessage> {
+
+    static final int MAX_BATCH_SIZE = 1024;
+    static final long POLL_INTERVAL_MILLIS = 500;
+    static final long NOTIFIED_POLL_INTERVAL_MILLIS = 10_000;
+
+    final AvroRawdataClient client;
+    final String topic;
+    final AvroRawdataCursor cursor;
+    final Executor executor;
+    final ScheduledExecutorService retryExecutor;
+
+    AvroRawdataPublisher(AvroRawdataClient client, String topic, AvroRawdataCursor cursor, Executor executor, ScheduledExecutorService retryExecutor) {
+        this.client = client;
+        this.topic = topic;
+        this.cursor = cursor;
+        this.executor = executor;
+        this.retryExecutor = retryExecutor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super RawdataMessage> subscriber) {
+        TopicSubscription subscription = new TopicSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    class TopicSubscription implements Flow.Subscription {
+
+        final Flow.Subscriber<? super RawdataMessage> subscriber;
+        final AtomicLong demand = new AtomicLong(0);
+        final AtomicInteger workInProgress = new AtomicInteger(0);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicBoolean retryScheduled = new AtomicBoolean(false);
+        volatile Throwable invalidRequest;
+        volatile Runnable newFilesCallback; // registered with the topic file cache while waiting for new files
+        volatile ScheduledFuture<?> scheduledPoll; // poll of the topic while waiting for new files
+        AvroRawdataConsumer consumer; // only accessed by drain
+
+        TopicSubscription(Flow.Subscriber<? super RawdataMessage> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            executor.execute(this::drain);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+            executor.execute(this::drain);
+        }
+
+        /**
+         * Deliver messages while there is demand. Only one thread at a time runs the loop, calls while it is running
+         * make it go another round.
+         */
+        void drain() {
+            if (workInProgress.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (; ; ) {
+                if (cancelled.get()) {
+                    closeConsumer();
+                    return;
+                }
+                if (invalidRequest != null) {
+                    fail(invalidRequest);
+                    return;
+                }
+                try {
+                    if (consumer == null) {
+                        consumer = client.newConsumer(topic, cursor, null);
+                    }
+                    if (consumer.isClosed()) {
+                        throw new RawdataClosedException();
+                    }
+                    long requested = demand.get();
+                    long emitted = 0;
+                    while (emitted < requested && !cancelled.get()) {
+                        long notificationCount = consumer.gcsTopicAvroFileCache.notificationCount();
+                        int maxMessages = (int) Math.min(requested - emitted, MAX_BATCH_SIZE);
+                        List<RawdataMessage> batch = consumer.receiveBatch(maxMessages, Long.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+                        if (batch.isEmpty()) {
+                            scheduleRetry(notificationCount);
+                            break;
+                        }
+                        for (RawdataMessage message : batch) {
+                            subscriber.onNext(message);
+                        }
+                        emitted += batch.size();
+                    }
+                    if (emitted > 0 && requested != Long.MAX_VALUE) {
+                        demand.addAndGet(-emitted);
+                    }
+                } catch (Throwable t) {
+                    fail(t);
+                    return;
+                }
+                missed = workInProgress.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Run drain again when the topic may have new files.
+         */
+        private void scheduleRetry(long notificationCountSeen) {
+            if (!retryScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            Runnable retry = () -> {
+                // run by whichever of notification and poll comes first
+                if (retryScheduled.compareAndSet(true, false) && !cancelled.get()) {
+                    executor.execute(this::drain);
+                }
+            };
+            AvroFileNotificationSource notificationSource = client.notificationSource;
+            cancelWaitForNewFiles(); // callback is still registered if polled, and poll is still scheduled if notified
+            if (notificationSource != null && notificationSource.isReliable()) {
+                newFilesCallback = retry;
+                consumer.gcsTopicAvroFileCache.onNewFiles(notificationCountSeen, retry);
+                scheduledPoll = retryExecutor.schedule(retry, NOTIFIED_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                scheduledPoll = retryExecutor.schedule(retry, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void cancelWaitForNewFiles() {
+            Runnable callback = newFilesCallback;
+            if (callback != null) {
+                consumer.gcsTopicAvroFileCache.removeNewFilesCallback(callback);
+                newFilesCallback = null;
+            }
+            ScheduledFuture<?> poll = scheduledPoll;
+            if (poll != null) {
+                poll.cancel(false);
+                scheduledPoll = null;
+            }
+        }
+
+        private void fail(Throwable t) {
+            cancelled.set(true);
+            closeConsumer();
+            subscriber.onError(t);
+        }
+
+        private void closeConsumer() {
+            if (consumer != null) {
+                cancelWaitForNewFiles();
+                consumer.close();
+                client.consumers.remove(consumer);
+            }
+        }
+    }
+}
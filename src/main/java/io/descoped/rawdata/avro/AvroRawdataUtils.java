@@ -1,17 +1,38 @@
 package io.descoped.rawdata.avro;
 
+import java.nio.ByteBuffer;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.NavigableMap;
+import java.util.TreeMap;
 
 public interface AvroRawdataUtils {
 
     NavigableMap<Long, RawdataAvroFile> getTopicBlobs(String topic);
 
+    /**
+     * List the files of a topic with a timestamp greater than or equal to fromTimestamp. File-names start with an
+     * ISO-8601 timestamp, so implementations can avoid listing older files when the underlying storage supports
+     * listing from a lexicographic offset.
+     *
+     * @param topic         the topic
+     * @param fromTimestamp lower-bound (inclusive) timestamp of files to list
+     * @return files by timestamp
+     */
+    default NavigableMap<Long, RawdataAvroFile> getTopicBlobsFrom(String topic, long fromTimestamp) {
+        return new TreeMap<>(getTopicBlobs(topic).tailMap(fromTimestamp, true));
+    }
+
     AvroFileMetadata newAvrofileMetadata();
 
+    /**
+     * Release resources held by these utils, called when the client is closed.
+     */
+    default void close() {
+    }
+
     DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
 
     static String formatTimestamp(long timestamp) {
@@ -19,11 +40,34 @@ public interface AvroRawdataUtils {
         return zonedDateTime.format(dateTimeFormatter);
     }
 
+    /**
+     * The fraction of seconds in formatted timestamps has variable length, so formatted timestamps only sort
+     * lexicographically in chronological order up to the second.
+     *
+     * @return a lexicographic lower-bound of the file-names of all files with a timestamp greater than or equal to
+     * the given timestamp.
+     */
+    static String filenameOffsetOf(long timestamp) {
+        return formatTimestamp(timestamp).substring(0, "yyyy-MM-ddTHH:mm:ss".length());
+    }
+
     static long parseTimestamp(String timestamp) {
         ZonedDateTime zonedDateTime = ZonedDateTime.parse(timestamp, dateTimeFormatter);
         return zonedDateTime.toInstant().toEpochMilli();
     }
 
+    /**
+     * @return the remaining bytes of buffer, without copying if they are exactly the backing array
+     */
+    static byte[] bytesOf(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
     /**
      * Code copied from article posted by https://stackoverflow.com/users/276052/aioobe :
      * https://stackoverflow.com/questions/3758606/how-to-convert-byte-size-into-human-readable-format-in-java
@@ -0,0 +1,285 @@
+package io.descoped.rawdata.avro;
+
+import io.descoped.rawdata.api.RawdataMessage;
+import org.apache.avro.file.DataFileReader;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded scan of the messages of a topic in the time-range [from, to). The files of the range are read concurrently
+ * on the scan executor, with at most parallelism files being opened ahead of the caller at any time. Each file is
+ * streamed in chunks of at most MESSAGES_PER_CHUNK messages, and only one chunk is read ahead of the caller per
+ * file, so that memory use is bounded by the number of open files rather than by the size of the files.
+ * <p>
+ * In ordered mode files are read ahead in timestamp order and the messages of all files that might overlap are
+ * merged by ulid. In unordered mode the messages of each file are returned in file order as soon as the first chunk
+ * of the file has been read, regardless of the order of files.
+ */
+class AvroTopicScan implements Iterator<RawdataMessage>, AutoCloseable {
+
+    static final int MESSAGES_PER_CHUNK = 256;
+
+    static class Chunk {
+        final List<RawdataMessage> messages;
+        final boolean last;
+
+        Chunk(List<RawdataMessage> messages, boolean last) {
+            this.messages = messages;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Iterator of the messages of one file within the time-range. The file is kept open between chunks, and the
+     * next chunk is read on the executor while the caller iterates the current one. Chunks are read one at a time,
+     * each by a task submitted after the previous one completed.
+     */
+    class FileScan implements Iterator<RawdataMessage> {
+        final Long key;
+        final RawdataAvroFile rawdataAvroFile;
+        DataFileReader<RawdataMessage> dataFileReader; // guarded by this
+        boolean stopAtUpperBound; // guarded by this
+        boolean readerClosed; // guarded by this
+        CompletableFuture<Chunk> nextChunk; // null when the last chunk has been taken
+        Iterator<RawdataMessage> current = Collections.emptyIterator();
+
+        FileScan(Long key, RawdataAvroFile rawdataAvroFile) {
+            this.key = key;
+            this.rawdataAvroFile = rawdataAvroFile;
+            this.nextChunk = CompletableFuture.supplyAsync(this::readChunk, executor);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (nextChunk == null) {
+                    return false;
+                }
+                Chunk chunk = nextChunk.join();
+                nextChunk = chunk.last ? null : CompletableFuture.supplyAsync(this::readChunk, executor);
+                current = chunk.messages.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public RawdataMessage next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        /**
+         * @return the next messages of the file within the time-range, in file order
+         */
+        private synchronized Chunk readChunk() {
+            List<RawdataMessage> messages = new ArrayList<>();
+            if (closed.get() || readerClosed) {
+                closeReader();
+                return new Chunk(messages, true);
+            }
+            try {
+                if (dataFileReader == null) {
+                    dataFileReader = client.openDataFileReader(rawdataAvroFile, rawdataAvroFile.seekableInput(), new RawdataMessageDatumReader(null));
+                    if (from > key) {
+                        AvroBlockIndex blockIndex = client.blockIndexOf(rawdataAvroFile, dataFileReader);
+                        long offset = blockIndex.offsetOfBlockToScanFrom(from);
+                        if (offset < 0) {
+                            closeReader();
+                            return new Chunk(messages, true);
+                        }
+                        dataFileReader.seek(offset);
+                        stopAtUpperBound = blockIndex.sorted;
+                    }
+                }
+                while (messages.size() < MESSAGES_PER_CHUNK && dataFileReader.hasNext()) {
+                    RawdataMessage message = dataFileReader.next();
+                    long timestamp = message.timestamp();
+                    if (timestamp >= to) {
+                        if (stopAtUpperBound) {
+                            closeReader();
+                            return new Chunk(messages, true);
+                        }
+                    } else if (timestamp >= from) {
+                        messages.add(message);
+                    }
+                }
+                boolean last = !dataFileReader.hasNext();
+                if (last) {
+                    closeReader();
+                }
+                return new Chunk(messages, last);
+            } catch (IOException e) {
+                closeReader();
+                throw new RuntimeException(e);
+            } catch (RuntimeException | Error e) {
+                closeReader();
+                throw e;
+            }
+        }
+
+        /**
+         * Close the file, waiting for a chunk that is being read to complete.
+         */
+        synchronized void closeReader() {
+            readerClosed = true;
+            if (dataFileReader != null) {
+                try {
+                    dataFileReader.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                dataFileReader = null;
+            }
+        }
+
+        void close() {
+            if (nextChunk != null) {
+                nextChunk.cancel(false);
+                nextChunk = null;
+            }
+            closeReader();
+        }
+    }
+
+    static class PeekingIterator {
+        final FileScan iterator;
+        RawdataMessage head;
+
+        PeekingIterator(FileScan iterator) {
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+
+        RawdataMessage advance() {
+            RawdataMessage previous = head;
+            head = iterator.hasNext() ? iterator.next() : null;
+            return previous;
+        }
+    }
+
+    final AvroRawdataClient client;
+    final long from;
+    final long to;
+    final boolean ordered;
+    final int parallelism;
+    final ExecutorService executor;
+    final Iterator<Map.Entry<Long, RawdataAvroFile>> files;
+    final AtomicBoolean closed = new AtomicBoolean(false);
+
+    final Deque<FileScan> pending = new ArrayDeque<>(); // submitted and not yet taken, in timestamp order
+    final LinkedBlockingQueue<FileScan> completed = new LinkedBlockingQueue<>(); // with first chunk read, unordered mode only
+    final PriorityQueue<PeekingIterator> heads = new PriorityQueue<>(Comparator.comparing((PeekingIterator it) -> it.head.ulid()));
+    FileScan current; // unordered mode only
+
+    AvroTopicScan(AvroRawdataClient client, NavigableMap<Long, RawdataAvroFile> filesInRange, long from, long to, boolean ordered, int parallelism, ExecutorService executor) {
+        this.client = client;
+        this.files = filesInRange.entrySet().iterator();
+        this.from = from;
+        this.to = to;
+        this.ordered = ordered;
+        this.parallelism = parallelism;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed.get()) {
+            return false;
+        }
+        return ordered ? hasNextOrdered() : hasNextUnordered();
+    }
+
+    @Override
+    public RawdataMessage next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (ordered) {
+            PeekingIterator smallest = heads.poll();
+            RawdataMessage message = smallest.advance();
+            if (smallest.head != null) {
+                heads.add(smallest);
+            } else {
+                smallest.iterator.close();
+            }
+            return message;
+        }
+        return current.next();
+    }
+
+    private boolean hasNextOrdered() {
+        submitUpToParallelism();
+        // a file can not contain messages older than its key, merge all files that might contain the next message
+        while (!pending.isEmpty() && (heads.isEmpty() || pending.peek().key <= heads.peek().head.timestamp())) {
+            FileScan fileScan = pending.poll();
+            if (fileScan.hasNext()) {
+                heads.add(new PeekingIterator(fileScan));
+            }
+            submitUpToParallelism();
+        }
+        return !heads.isEmpty();
+    }
+
+    private boolean hasNextUnordered() {
+        while (current == null || !current.hasNext()) {
+            if (current != null) {
+                pending.remove(current);
+                current = null;
+            }
+            submitUpToParallelism();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            try {
+                current = completed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        return true;
+    }
+
+    private void submitUpToParallelism() {
+        while (pending.size() < parallelism && files.hasNext()) {
+            Map.Entry<Long, RawdataAvroFile> entry = files.next();
+            FileScan fileScan = new FileScan(entry.getKey(), entry.getValue());
+            pending.add(fileScan);
+            if (!ordered) {
+                fileScan.nextChunk.whenComplete((result, throwable) -> completed.add(fileScan));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            for (FileScan fileScan : pending) {
+                fileScan.close();
+            }
+            pending.clear();
+            for (PeekingIterator head : heads) {
+                head.iterator.close();
+            }
+            heads.clear();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.descoped.rawdata.avro;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * A Bloom filter of strings. Answers whether a value might have been added, with no false negatives and a false
+ * positive rate of about 1% at 10 bits per value.
+ */
+class BloomFilter {
+
+    static final int BITS_PER_VALUE = 10;
+    static final int NUM_HASH_FUNCTIONS = 7;
+
+    final byte[] bits;
+    final int numHashFunctions;
+
+    BloomFilter(byte[] bits, int numHashFunctions) {
+        this.bits = bits;
+        this.numHashFunctions = numHashFunctions;
+    }
+
+    static BloomFilter of(Collection<String> values) {
+        BloomFilter bloomFilter = new BloomFilter(new byte[Math.max(1, (values.size() * BITS_PER_VALUE + 7) / 8)], NUM_HASH_FUNCTIONS);
+        for (String value : values) {
+            bloomFilter.add(value);
+        }
+        return bloomFilter;
+    }
+
+    void add(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long numBits = bits.length * 8L;
+        for (int i = 1; i <= numHashFunctions; i++) {
+            int bit = (int) (((h1 + i * h2) & Integer.MAX_VALUE) % numBits);
+            bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+    }
+
+    boolean mightContain(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long numBits = bits.length * 8L;
+        for (int i = 1; i <= numHashFunctions; i++) {
+            int bit = (int) (((h1 + i * h2) & Integer.MAX_VALUE) % numBits);
+            if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes of value, followed by the murmur3 finalizer to spread the bits.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
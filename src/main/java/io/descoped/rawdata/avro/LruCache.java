@@ -0,0 +1,45 @@
+package io.descoped.rawdata.avro;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A bounded map that evicts the least recently used entry when full.
+ */
+class LruCache<K, V> {
+
+    final Map<K, V> map; // guarded by this
+
+    LruCache(int maxEntries) {
+        this.map = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    /**
+     * Like {@link Map#computeIfAbsent(Object, Function)}, but the value is computed without holding the lock, so
+     * concurrent callers may compute the same value more than once.
+     */
+    V computeIfAbsent(K key, Function<K, V> mappingFunction) {
+        V value = get(key);
+        if (value == null) {
+            value = mappingFunction.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+}
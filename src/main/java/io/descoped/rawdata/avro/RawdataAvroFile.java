@@ -2,6 +2,8 @@ package io.descoped.rawdata.avro;
 
 import org.apache.avro.file.SeekableInput;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.file.Path;
 
 public interface RawdataAvroFile {
@@ -10,5 +12,42 @@ public interface RawdataAvroFile {
 
     long getOffsetOfLastBlock();
 
+    /**
+     * @return the bytes of the file from offset to the end of the file
+     */
+    default byte[] readTail(long offset) {
+        try (SeekableInput input = seekableInput()) {
+            byte[] tail = new byte[(int) (input.length() - offset)];
+            input.seek(offset);
+            int n = 0;
+            while (n < tail.length) {
+                int read = input.read(tail, n, tail.length - n);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                n += read;
+            }
+            return tail;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     void copyFrom(Path source);
+
+    /**
+     * @return the block index stored next to this file, or null if none was stored
+     */
+    byte[] readBlockIndex();
+
+    /**
+     * Store the block index of this file next to it. Called before the file itself is copied, so that the index is in
+     * place when the file becomes visible.
+     */
+    void writeBlockIndex(byte[] blockIndex);
+
+    /**
+     * @return a value that identifies the contents of this file, files with the same identity have the same contents
+     */
+    String getIdentity();
 }
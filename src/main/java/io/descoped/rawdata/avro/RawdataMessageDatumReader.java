@@ -0,0 +1,66 @@
+package io.descoped.rawdata.avro;
+
+import de.huxhorn.sulky.ulid.ULID;
+import io.descoped.rawdata.api.RawdataMessage;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decodes records written with {@link AvroRawdataProducer#schema} directly into messages, without going through a
+ * generic record. When a set of keys is given, the values of all other data entries are skipped in the input without
+ * being copied.
+ */
+class RawdataMessageDatumReader implements DatumReader<RawdataMessage> {
+
+    final Set<String> keys; // null means all keys
+    final byte[] id = new byte[16];
+
+    RawdataMessageDatumReader(Set<String> keys) {
+        this.keys = keys;
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+        if (!AvroRawdataProducer.schema.equals(schema)) {
+            throw new IllegalArgumentException("Unsupported schema: " + schema);
+        }
+    }
+
+    @Override
+    public RawdataMessage read(RawdataMessage reuse, Decoder in) throws IOException {
+        in.readFixed(id);
+        ULID.Value ulid = ULID.fromBytes(id);
+        String orderingGroup = null;
+        if (in.readIndex() == AvroRawdataMessageView.ORDERING_GROUP_STRING_BRANCH) {
+            orderingGroup = in.readString();
+        } else {
+            in.readNull();
+        }
+        long sequenceNumber = in.readLong();
+        String position = in.readString();
+        Map<String, byte[]> data = new LinkedHashMap<>();
+        for (long n = in.readMapStart(); n != 0; n = in.mapNext()) {
+            for (long i = 0; i < n; i++) {
+                String key = in.readString();
+                if (keys == null || keys.contains(key)) {
+                    data.put(key, AvroRawdataUtils.bytesOf(in.readBytes(null)));
+                } else {
+                    in.skipBytes();
+                }
+            }
+        }
+        return RawdataMessage.builder()
+                .ulid(ulid)
+                .orderingGroup(orderingGroup)
+                .sequenceNumber(sequenceNumber)
+                .position(position)
+                .data(data)
+                .build();
+    }
+}
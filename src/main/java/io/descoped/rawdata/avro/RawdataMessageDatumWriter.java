@@ -0,0 +1,66 @@
+package io.descoped.rawdata.avro;
+
+import de.huxhorn.sulky.ulid.ULID;
+import io.descoped.rawdata.api.RawdataMessage;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes messages directly as records of {@link AvroRawdataProducer#schema}, without going through a generic record.
+ * The output is identical to that of a generic datum writer of the schema. A message without ulid is written with an
+ * id of all zeros.
+ */
+class RawdataMessageDatumWriter implements DatumWriter<RawdataMessage> {
+
+    final byte[] id = new byte[16];
+
+    @Override
+    public void setSchema(Schema schema) {
+        if (!AvroRawdataProducer.schema.equals(schema)) {
+            throw new IllegalArgumentException("Unsupported schema: " + schema);
+        }
+    }
+
+    @Override
+    public void write(RawdataMessage message, Encoder out) throws IOException {
+        ULID.Value ulid = message.ulid();
+        if (ulid == null) {
+            Arrays.fill(id, (byte) 0);
+        } else {
+            writeBigEndianLong(ulid.getMostSignificantBits(), 0);
+            writeBigEndianLong(ulid.getLeastSignificantBits(), 8);
+        }
+        out.writeFixed(id);
+        String orderingGroup = message.orderingGroup();
+        if (orderingGroup == null) {
+            out.writeIndex(AvroRawdataMessageView.ORDERING_GROUP_NULL_BRANCH);
+            out.writeNull();
+        } else {
+            out.writeIndex(AvroRawdataMessageView.ORDERING_GROUP_STRING_BRANCH);
+            out.writeString(orderingGroup);
+        }
+        out.writeLong(message.sequenceNumber());
+        out.writeString(message.position());
+        Map<String, byte[]> data = message.data();
+        out.writeMapStart();
+        out.setItemCount(data.size());
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            out.startItem();
+            out.writeString(entry.getKey());
+            out.writeBytes(entry.getValue());
+        }
+        out.writeMapEnd();
+    }
+
+    private void writeBigEndianLong(long value, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            id[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -1,36 +1,179 @@
 package io.descoped.rawdata.avro;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Listing of the files of a topic, shared by all consumers of the topic in a client. At most one caller at a time
+ * refreshes the listing, all other callers are served the current snapshot while the refresh is in progress.
+ * <p>
+ * In incremental mode, a full listing is only done on the first refresh and when the full-listing interval has passed
+ * since the last one. Other refreshes only list files from the newest known file minus a look-back window and merge
+ * them into a copy of the existing listing, listings that have been returned to callers are never modified. The
+ * look-back window covers files that are uploaded late by producers whose window started before the newest known file,
+ * the periodic full listing picks up files that are uploaded even later and drops files that have been deleted.
+ * <p>
+ * When the client has a source of new-file notifications, every notification makes the next listing due regardless
+ * of the minimum listing interval, and wakes up consumers waiting for new files or runs their callbacks. A listing
+ * only counts as fresh for the notifications received before it started, and callers wait for an in-progress listing
+ * rather than being served a snapshot that is older than the latest notification.
+ */
 class TopicAvroFileCache {
 
     final AvroRawdataUtils gcsRawdataUtils;
     final String topic;
     final int minListingIntervalSeconds;
+    final boolean incremental;
+    final long incrementalLookbackMillis;
+    final int fullListingIntervalSeconds;
 
     final AtomicReference<NavigableMap<Long, RawdataAvroFile>> topicBlobsByFromTimestampRef = new AtomicReference<>();
     final AtomicLong timestampOfLastListing = new AtomicLong(0);
+    final AtomicLong notificationCountOfLastListing = new AtomicLong(0); // notifications received before last listing started
+    final ReentrantLock listingLock = new ReentrantLock();
+    long timestampOfLastFullListing = 0; // guarded by listingLock
+    final Object notificationMonitor = new Object();
+    long notificationCount = 0; // guarded by notificationMonitor
+    List<Runnable> newFilesCallbacks = new ArrayList<>(); // guarded by notificationMonitor
 
-    TopicAvroFileCache(AvroRawdataUtils gcsRawdataUtils, String topic, int minListingIntervalSeconds) {
+    int referenceCount = 0; // guarded by owning client
+
+    TopicAvroFileCache(AvroRawdataUtils gcsRawdataUtils, String topic, int minListingIntervalSeconds, boolean incremental, long incrementalLookbackMillis, int fullListingIntervalSeconds) {
         this.gcsRawdataUtils = gcsRawdataUtils;
         this.topic = topic;
         this.minListingIntervalSeconds = minListingIntervalSeconds;
+        this.incremental = incremental;
+        this.incrementalLookbackMillis = incrementalLookbackMillis;
+        this.fullListingIntervalSeconds = fullListingIntervalSeconds;
     }
 
     NavigableMap<Long, RawdataAvroFile> blobsByTimestamp() {
-        if ((System.currentTimeMillis() - timestampOfLastListing.get()) >= TimeUnit.SECONDS.toMillis(minListingIntervalSeconds)) {
-            // refresh entire cache by listing all files from GCS
-            topicBlobsByFromTimestampRef.set(gcsRawdataUtils.getTopicBlobs(topic));
-            timestampOfLastListing.set(System.currentTimeMillis());
+        NavigableMap<Long, RawdataAvroFile> snapshot = topicBlobsByFromTimestampRef.get();
+        if (!isListingDue()) {
+            return snapshot;
+        }
+        if (snapshot == null || notificationCountOfLastListing.get() < notificationCount()) {
+            listingLock.lock(); // nothing to serve yet, or snapshot may lack notified files, wait for listing
+        } else if (!listingLock.tryLock()) {
+            return snapshot; // another consumer is refreshing the listing
+        }
+        try {
+            if (isListingDue()) {
+                long notificationCountAtStart = notificationCount();
+                if (incremental) {
+                    refreshIncrementally();
+                } else {
+                    // refresh entire cache by listing all files from GCS
+                    topicBlobsByFromTimestampRef.set(Collections.unmodifiableNavigableMap(gcsRawdataUtils.getTopicBlobs(topic)));
+                }
+                timestampOfLastListing.set(System.currentTimeMillis());
+                notificationCountOfLastListing.set(notificationCountAtStart);
+            }
+            return topicBlobsByFromTimestampRef.get();
+        } finally {
+            listingLock.unlock();
+        }
+    }
+
+    private void refreshIncrementally() {
+        long now = System.currentTimeMillis();
+        NavigableMap<Long, RawdataAvroFile> snapshot = topicBlobsByFromTimestampRef.get();
+        if (snapshot == null
+                || (now - timestampOfLastFullListing) >= TimeUnit.SECONDS.toMillis(fullListingIntervalSeconds)) {
+            // replace the listing, files that have been deleted are dropped
+            topicBlobsByFromTimestampRef.set(Collections.unmodifiableNavigableMap(gcsRawdataUtils.getTopicBlobs(topic)));
+            timestampOfLastFullListing = now;
+            return;
+        }
+        long fromTimestamp = snapshot.isEmpty() ? 0 : snapshot.lastKey() - incrementalLookbackMillis;
+        NavigableMap<Long, RawdataAvroFile> merged = null;
+        for (Map.Entry<Long, RawdataAvroFile> entry : gcsRawdataUtils.getTopicBlobsFrom(topic, Math.max(0, fromTimestamp)).entrySet()) {
+            if (!snapshot.containsKey(entry.getKey())) {
+                // snapshots are handed out to consumers and never modified, publish a copy with the new files
+                if (merged == null) {
+                    merged = new TreeMap<>(snapshot);
+                }
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (merged != null) {
+            topicBlobsByFromTimestampRef.set(Collections.unmodifiableNavigableMap(merged));
+        }
+    }
+
+    private boolean isListingDue() {
+        return topicBlobsByFromTimestampRef.get() == null
+                || notificationCountOfLastListing.get() < notificationCount()
+                || (System.currentTimeMillis() - timestampOfLastListing.get()) >= TimeUnit.SECONDS.toMillis(minListingIntervalSeconds);
+    }
+
+    /**
+     * Signal that new files may have been added to the topic.
+     */
+    void notifyNewFiles() {
+        List<Runnable> callbacks;
+        synchronized (notificationMonitor) {
+            notificationCount++;
+            notificationMonitor.notifyAll();
+            callbacks = newFilesCallbacks;
+            newFilesCallbacks = new ArrayList<>();
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * @return the number of notifications so far, to be passed to {@link #awaitNewFiles(long, long)} by callers that
+     * check the listing before deciding to wait
+     */
+    long notificationCount() {
+        synchronized (notificationMonitor) {
+            return notificationCount;
+        }
+    }
+
+    /**
+     * Wait until a notification has been received after the given notification count was read, or until timeout.
+     */
+    void awaitNewFiles(long notificationCountSeen, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (notificationMonitor) {
+            long remaining;
+            while (notificationCount == notificationCountSeen && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                notificationMonitor.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * Run callback once, on the notifying thread, when a notification has been received after the given notification
+     * count was read. The callback is run immediately by the calling thread if that has already happened.
+     */
+    void onNewFiles(long notificationCountSeen, Runnable callback) {
+        synchronized (notificationMonitor) {
+            if (notificationCount == notificationCountSeen) {
+                newFilesCallbacks.add(callback);
+                return;
+            }
         }
-        return topicBlobsByFromTimestampRef.get();
+        callback.run();
     }
 
-    void clear() {
-        topicBlobsByFromTimestampRef.set(null);
-        timestampOfLastListing.set(0);
+    /**
+     * Remove a callback that has not been run, e.g. when the caller is no longer interested in new files.
+     */
+    void removeNewFilesCallback(Runnable callback) {
+        synchronized (notificationMonitor) {
+            newFilesCallbacks.remove(callback);
+        }
     }
 }
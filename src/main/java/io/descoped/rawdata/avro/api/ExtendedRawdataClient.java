@@ -0,0 +1,105 @@
+package io.descoped.rawdata.avro.api;
+
+import io.descoped.rawdata.api.RawdataClient;
+import io.descoped.rawdata.api.RawdataClosedException;
+import io.descoped.rawdata.api.RawdataConsumer;
+import io.descoped.rawdata.api.RawdataCursor;
+import io.descoped.rawdata.api.RawdataMessage;
+import io.descoped.rawdata.api.RawdataProducer;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Operations of the clients of this provider beyond {@link RawdataClient}. Every client created by the provider
+ * implements this interface, and the producers and consumers it creates implement {@link Producer} and
+ * {@link Consumer}.
+ */
+public interface ExtendedRawdataClient extends RawdataClient {
+
+    @Override
+    Producer producer(String topic);
+
+    @Override
+    default Consumer consumer(String topic) {
+        return consumer(topic, (RawdataCursor) null);
+    }
+
+    @Override
+    Consumer consumer(String topic, RawdataCursor cursor);
+
+    /**
+     * Create a consumer that only decodes the given keys of the data of each message, the values of all other keys
+     * are skipped when reading and are not part of the received messages.
+     *
+     * @param keys the data keys to read, or null to read all keys
+     */
+    Consumer consumer(String topic, RawdataCursor cursor, Set<String> keys);
+
+    /**
+     * A publisher of the messages of a topic from cursor, that reads and delivers messages on threads owned by the
+     * client, which are released when idle. See {@link #publisher(String, RawdataCursor, Executor)}.
+     */
+    Flow.Publisher<RawdataMessage> publisher(String topic, RawdataCursor cursor);
+
+    /**
+     * A publisher of the messages of a topic from cursor. Every subscription reads the topic independently, only
+     * as far ahead as the demand signalled by the subscriber, and the topic is never completed. Messages are read
+     * and delivered by tasks run on executor, and no executor thread is blocked while waiting for new files. Reading
+     * blocks on listing and file I/O, so executor should not be a pool shared with non-blocking tasks, such as the
+     * common fork-join pool.
+     *
+     * @param cursor the cursor to start from, or null to start from the beginning of the topic
+     */
+    Flow.Publisher<RawdataMessage> publisher(String topic, RawdataCursor cursor, Executor executor);
+
+    /**
+     * Scan the messages of topic with a timestamp in the range [fromTimestamp, toTimestamp). The files of the range
+     * are read concurrently, up to scan-parallelism files at a time. The stream must be closed if it is not fully
+     * consumed.
+     *
+     * @param ordered true to get messages in ulid order, false to get messages of each file as soon as the file has
+     *                been read
+     */
+    Stream<RawdataMessage> scan(String topic, long fromTimestamp, long toTimestamp, boolean ordered);
+
+    /**
+     * @return a cursor of the position right after the last message of the topic at the time a consumer is created
+     * with the cursor. A consumer created with this cursor is positioned from the file-listing alone, without reading
+     * any part of the topic. The cursor can only be used with consumers of the same topic.
+     */
+    RawdataCursor cursorAtEnd(String topic);
+
+    interface Producer extends RawdataProducer {
+
+        /**
+         * Publish messages with acknowledgement of durable storage. Messages are written to the active file in the
+         * same order as with publish. The returned future is completed when the file that holds the messages has
+         * been uploaded, and is thus visible to listings of the topic, or exceptionally if the messages could not be
+         * written or uploaded. The future of a publish without messages is already completed. Acknowledged messages
+         * are committed in groups, a file that holds any is uploaded no later than producer.commit.max-delay-ms
+         * after the first of them was written.
+         *
+         * @return a future that is completed when the messages are durably stored
+         */
+        CompletableFuture<Void> publishAcknowledged(RawdataMessage... messages) throws RawdataClosedException;
+    }
+
+    interface Consumer extends RawdataConsumer {
+
+        /**
+         * Receive up to maxMessages messages, waiting at most timeout for the first one. Once the first message has
+         * been received, only messages that can be read without waiting for another file are added to the batch. A
+         * message is only added if the total size of message data stays within maxBytes, except for the first
+         * message which is always returned.
+         *
+         * @return a new list of the received messages, which is not re-used by the consumer, empty on timeout
+         */
+        List<RawdataMessage> receiveBatch(int maxMessages, long maxBytes, int timeout, TimeUnit unit) throws InterruptedException, RawdataClosedException;
+    }
+}
@@ -0,0 +1,240 @@
+package io.descoped.rawdata.avro.cloudstorage;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import org.apache.avro.file.SeekableFileInput;
+import org.apache.avro.file.SeekableInput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Client-wide local-disk cache of Avro files in GCS. Topic files are immutable once uploaded, so a local copy can be
+ * served to any number of consumers and readers. Cached files are named by blob-name and generation, a blob that has
+ * been re-written will therefore never be served from a stale copy. The total size of cached files is kept within a
+ * budget by evicting the least recently used files, and concurrent requests for the same blob share one download.
+ * A file is pinned while an input of it is open, and pinned files are not evicted, so the budget may be exceeded by
+ * files that are being read.
+ */
+class GCSBlobCache {
+
+    static final Logger LOG = LoggerFactory.getLogger(GCSBlobCache.class);
+
+    final Storage storage;
+    final Path folder;
+    final long maxBytes;
+
+    final Map<String, Long> sizeByFilename = new LinkedHashMap<>(16, 0.75f, true); // access-order, guarded by this
+    long totalBytes = 0; // guarded by this
+    final Map<String, Integer> openInputsByFilename = new HashMap<>(); // guarded by this
+    final ConcurrentMap<String, CompletableFuture<Path>> downloadByFilename = new ConcurrentHashMap<>();
+
+    GCSBlobCache(Storage storage, Path folder, long maxBytes) {
+        this.storage = storage;
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(folder);
+            // re-use files cached by a previous instance, least recently modified first
+            List<Path> existing;
+            try (Stream<Path> stream = Files.list(folder)) {
+                existing = stream.sorted(Comparator.comparing(path -> path.toFile().lastModified()))
+                        .collect(Collectors.toList());
+            }
+            // partial downloads left by a previous instance that did not complete
+            for (Path path : existing) {
+                if (path.getFileName().toString().endsWith(".download")) {
+                    Files.deleteIfExists(path);
+                }
+            }
+            existing.removeIf(path -> !path.getFileName().toString().endsWith(".avro"));
+            synchronized (this) {
+                for (Path path : existing) {
+                    long size = Files.size(path);
+                    sizeByFilename.put(path.getFileName().toString(), size);
+                    totalBytes += size;
+                }
+                evict(null);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return an input of the local copy of the blob, downloading it first if not already cached. Returns null if
+     * the blob is too large to ever fit in the cache, or if the download of it failed, in which case the caller reads
+     * the blob directly.
+     */
+    SeekableInput seekableInput(BlobId blobId, long size) {
+        if (size > maxBytes) {
+            return null;
+        }
+        String filename = filenameOf(blobId);
+        SeekableInput cached = openIfCached(filename);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> existingDownload = downloadByFilename.putIfAbsent(filename, download);
+        if (existingDownload != null) {
+            try {
+                existingDownload.join(); // another thread is downloading the same blob
+            } catch (CompletionException | CancellationException e) {
+                LOG.debug("Shared download of blob {} failed, reading it directly", blobId, e);
+                return null; // the downloading thread reports the failure
+            }
+        } else {
+            try {
+                download.complete(download(blobId, filename));
+            } catch (RuntimeException e) {
+                LOG.warn("Download of blob {} to cache failed, reading it directly", blobId, e);
+                download.completeExceptionally(e);
+                return null;
+            } catch (Error e) {
+                download.completeExceptionally(e);
+                throw e;
+            } finally {
+                downloadByFilename.remove(filename, download);
+            }
+        }
+        return openIfCached(filename);
+    }
+
+    private synchronized SeekableInput openIfCached(String filename) {
+        if (sizeByFilename.get(filename) == null) {
+            return null;
+        }
+        SeekableInput input;
+        try {
+            input = new PinnedFileInput(filename);
+        } catch (IOException e) {
+            LOG.warn("Unable to open cached file {}, removing it from cache", filename, e);
+            remove(filename);
+            return null;
+        }
+        openInputsByFilename.merge(filename, 1, Integer::sum);
+        return input;
+    }
+
+    private synchronized void unpin(String filename) {
+        openInputsByFilename.computeIfPresent(filename, (k, count) -> count == 1 ? null : count - 1);
+        evict(null);
+    }
+
+    /**
+     * Input of a cached file that keeps the file from being evicted until closed.
+     */
+    class PinnedFileInput extends SeekableFileInput {
+
+        final String filename;
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        PinnedFileInput(String filename) throws IOException {
+            super(folder.resolve(filename).toFile());
+            this.filename = filename;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (closed.compareAndSet(false, true)) {
+                    unpin(filename);
+                }
+            }
+        }
+    }
+
+    private Path download(BlobId blobId, String filename) {
+        Path path = folder.resolve(filename);
+        try {
+            Path tmpPath = Files.createTempFile(folder, "", ".download");
+            try {
+                storage.downloadTo(blobId, tmpPath);
+                long size = Files.size(tmpPath);
+                Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                synchronized (this) {
+                    Long previousSize = sizeByFilename.put(filename, size);
+                    totalBytes += size - (previousSize == null ? 0 : previousSize);
+                    evict(filename);
+                }
+                LOG.debug("Cached blob {} ({} bytes) as {}", blobId, size, path);
+            } finally {
+                Files.deleteIfExists(tmpPath);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return path;
+    }
+
+    /**
+     * Evict least recently used files until within budget, except files pinned by an open input and the given file
+     * which is about to be opened.
+     */
+    private synchronized void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = sizeByFilename.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep) || openInputsByFilename.containsKey(eldest.getKey())) {
+                continue; // evicted later when no longer in use, if still over budget
+            }
+            it.remove();
+            totalBytes -= eldest.getValue();
+            delete(eldest.getKey());
+        }
+    }
+
+    private synchronized void remove(String filename) {
+        Long size = sizeByFilename.remove(filename);
+        if (size != null) {
+            totalBytes -= size;
+            delete(filename);
+        }
+    }
+
+    private void delete(String filename) {
+        try {
+            Files.deleteIfExists(folder.resolve(filename));
+        } catch (IOException e) {
+            LOG.warn("Unable to delete evicted file {} from blob cache", filename, e);
+        }
+    }
+
+    static String filenameOf(BlobId blobId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((blobId.getBucket() + "/" + blobId.getName()).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(2 * hash.length + 32);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append('_').append(blobId.getGeneration()).append(".avro").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
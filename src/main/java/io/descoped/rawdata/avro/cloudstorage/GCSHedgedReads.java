@@ -0,0 +1,165 @@
+package io.descoped.rawdata.avro.cloudstorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Client-wide policy for hedged range reads against GCS. A read that has not completed within the configured
+ * percentile of recently observed read latencies is raced against a second, identical read, and the first to complete
+ * wins. A read that fails is retried once. The number of hedging and retrying reads in flight across the client is
+ * limited, reads are not hedged or retried while at the limit, so that a failing or slow backend is not loaded with
+ * extra reads.
+ */
+class GCSHedgedReads {
+
+    static final Logger LOG = LoggerFactory.getLogger(GCSHedgedReads.class);
+
+    static final int LATENCY_SAMPLES = 128;
+    static final int MIN_LATENCY_SAMPLES = 16;
+
+    /**
+     * A read operation that can be started more than once.
+     */
+    interface Read<T> {
+        T read() throws IOException;
+    }
+
+    final double percentile;
+    final long minDelayMillis;
+    final Semaphore hedgePermits;
+    final ExecutorService executor;
+
+    final long[] latencies = new long[LATENCY_SAMPLES]; // ring-buffer, guarded by this
+    int latencyCount = 0; // guarded by this
+
+    GCSHedgedReads(double percentile, long minDelayMillis, int maxConcurrentHedges) {
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.hedgePermits = new Semaphore(maxConcurrentHedges);
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "rawdata-gcs-read-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the time to wait for a read before hedging it
+     */
+    synchronized long hedgeDelayMillis() {
+        int n = Math.min(latencyCount, LATENCY_SAMPLES);
+        if (n < MIN_LATENCY_SAMPLES) {
+            return minDelayMillis;
+        }
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(n - 1, Math.ceil(percentile / 100 * n) - 1);
+        return Math.max(minDelayMillis, sorted[Math.max(0, index)]);
+    }
+
+    synchronized void recordLatency(long millis) {
+        latencies[latencyCount++ % LATENCY_SAMPLES] = millis;
+    }
+
+    /**
+     * Perform read, hedging it with another invocation of read if slow and retrying it once if it fails.
+     *
+     * @param discard called with the result of a read that completed after another read had already won
+     */
+    <T> T read(Read<T> read, Consumer<T> discard) throws IOException {
+        long start = System.currentTimeMillis();
+        CompletableFuture<T> primary = start(read);
+        CompletableFuture<T> secondary = null;
+        try {
+            return primary.get(hedgeDelayMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (hedgePermits.tryAcquire()) {
+                secondary = start(read);
+            }
+        } catch (ExecutionException e) {
+            if (hedgePermits.tryAcquire()) {
+                LOG.debug("Range read failed, retrying", e.getCause());
+                secondary = start(read);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            if (primary.isDone() && !primary.isCompletedExceptionally()) {
+                recordLatency(System.currentTimeMillis() - start);
+            }
+        }
+        if (secondary == null) {
+            return join(primary); // not allowed to hedge or retry, wait for primary or report its failure
+        }
+        secondary.whenComplete((result, throwable) -> hedgePermits.release());
+        CompletableFuture<T> winner = firstSuccessful(primary, secondary);
+        T result = join(winner);
+        recordLatency(System.currentTimeMillis() - start);
+        CompletableFuture<T> loser = winner == primary ? secondary : primary;
+        loser.thenAccept(discard);
+        return result;
+    }
+
+    private <T> CompletableFuture<T> start(Read<T> read) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read.read();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * @return the future that completes successfully first, or the second future if both fail
+     */
+    private static <T> CompletableFuture<T> firstSuccessful(CompletableFuture<T> first, CompletableFuture<T> second) {
+        CompletableFuture<CompletableFuture<T>> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger(0);
+        for (CompletableFuture<T> candidate : Arrays.asList(first, second)) {
+            candidate.whenComplete((result, throwable) -> {
+                if (throwable == null || failures.incrementAndGet() == 2) {
+                    winner.complete(candidate);
+                }
+            });
+        }
+        return winner.join();
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stop the read threads, reads in progress are allowed to complete.
+     */
+    void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,217 @@
+package io.descoped.rawdata.avro.cloudstorage;
+
+import com.google.api.core.ApiService;
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.cloud.storage.BlobId;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import io.descoped.rawdata.avro.AvroFileNotificationSource;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Notifies listeners when files are uploaded to topics, using Pub/Sub notifications of the bucket. The bucket must
+ * be configured to publish OBJECT_FINALIZE notifications to a Pub/Sub topic, and the subscription used by this
+ * source must not be shared with other clients, as each message is only delivered to one subscriber.
+ * <p>
+ * This source only reports itself as reliable while the subscriber is running, consumers poll the file-listing
+ * until the subscriber has started and while it is down. A failed subscriber is restarted with exponential backoff,
+ * the delay between restarts is doubled for every consecutive failure up to a maximum delay.
+ * <p>
+ * A message is acked once it has been checked against the bucket and the watched topics, and the listener of its
+ * topic has been run. A message that cannot be processed is nacked, so that it is redelivered.
+ */
+class GCSPubSubNotificationSource implements AvroFileNotificationSource {
+
+    static final Logger LOG = LoggerFactory.getLogger(GCSPubSubNotificationSource.class);
+
+    static final long MAX_RESTART_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    final String bucket;
+    final String subscription;
+    final Map<String, Runnable> listenerByTopic = new ConcurrentHashMap<>();
+    final AtomicBoolean running = new AtomicBoolean(false);
+    final AtomicBoolean closed = new AtomicBoolean(false);
+    final ManagedChannel emulatorChannel;
+    final Function<MessageReceiver, ApiService> subscriberFactory;
+    final AtomicReference<ApiService> subscriberRef = new AtomicReference<>(); // replaced on restart while holding this
+    final long minRestartDelayMillis;
+    final long maxRestartDelayMillis;
+    final AtomicLong restartDelayMillis;
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    final ScheduledExecutorService restartExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rawdata-pubsub-restart");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param bucket              only notifications of objects in this bucket are considered
+     * @param subscription        the subscription name, i.e. projects/{project}/subscriptions/{subscription}
+     * @param credentialsProvider credentials used to pull from the subscription
+     * @param emulatorHost        host:port of a Pub/Sub emulator, or null to use the Pub/Sub service
+     */
+    GCSPubSubNotificationSource(String bucket, String subscription, CredentialsProvider credentialsProvider, String emulatorHost) {
+        this(bucket, subscription, emulatorHost == null ? null : ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build(), credentialsProvider);
+    }
+
+    private GCSPubSubNotificationSource(String bucket, String subscription, ManagedChannel emulatorChannel, CredentialsProvider credentialsProvider) {
+        this(bucket, subscription, emulatorChannel, receiver -> {
+            Subscriber.Builder builder = Subscriber.newBuilder(ProjectSubscriptionName.parse(subscription), receiver);
+            if (emulatorChannel != null) {
+                builder.setChannelProvider(FixedTransportChannelProvider.create(GrpcTransportChannel.create(emulatorChannel)))
+                        .setCredentialsProvider(NoCredentialsProvider.create());
+            } else {
+                builder.setCredentialsProvider(credentialsProvider);
+            }
+            return builder.build();
+        }, TimeUnit.SECONDS.toMillis(1), MAX_RESTART_DELAY_MILLIS);
+    }
+
+    /**
+     * @param subscriberFactory     creates a new subscriber delivering messages to the given receiver, called again
+     *                              to restart after a subscriber has failed
+     * @param minRestartDelayMillis delay before the first restart, doubled for every consecutive failure
+     * @param maxRestartDelayMillis upper bound of the delay between restarts
+     */
+    GCSPubSubNotificationSource(String bucket, String subscription, ManagedChannel emulatorChannel, Function<MessageReceiver, ApiService> subscriberFactory, long minRestartDelayMillis, long maxRestartDelayMillis) {
+        this.bucket = bucket;
+        this.subscription = subscription;
+        this.emulatorChannel = emulatorChannel;
+        this.subscriberFactory = subscriberFactory;
+        this.minRestartDelayMillis = minRestartDelayMillis;
+        this.maxRestartDelayMillis = maxRestartDelayMillis;
+        this.restartDelayMillis = new AtomicLong(minRestartDelayMillis);
+        startSubscriber();
+    }
+
+    private synchronized void startSubscriber() {
+        if (closed.get()) {
+            return;
+        }
+        ApiService subscriber = subscriberFactory.apply(this::receiveMessage);
+        subscriber.addListener(new ApiService.Listener() {
+            @Override
+            public void running() {
+                running.set(true);
+                restartDelayMillis.set(minRestartDelayMillis);
+                int failures = consecutiveFailures.getAndSet(0);
+                if (failures > 0) {
+                    LOG.info("Pub/Sub subscriber {} restarted after {} consecutive failures", subscription, failures);
+                }
+            }
+
+            @Override
+            public void failed(ApiService.State from, Throwable failure) {
+                running.set(false);
+                if (closed.get()) {
+                    return;
+                }
+                long delay = restartDelayMillis.getAndUpdate(d -> Math.min(2 * d, maxRestartDelayMillis));
+                int failures = consecutiveFailures.incrementAndGet();
+                LOG.warn("Pub/Sub subscriber {} failed ({} consecutive failures), consumers will fall back to polling until restarted in {} ms",
+                        subscription, failures, delay, failure);
+                try {
+                    restartExecutor.schedule(GCSPubSubNotificationSource.this::startSubscriber, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // closed concurrently
+                }
+            }
+
+            @Override
+            public void stopping(ApiService.State from) {
+                running.set(false);
+            }
+        }, Runnable::run);
+        subscriberRef.set(subscriber);
+        subscriber.startAsync();
+    }
+
+    void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
+        Runnable listener;
+        try {
+            listener = listenerOf(message);
+            if (listener != null) {
+                listener.run();
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to process Pub/Sub message {} of subscription {}, it will be redelivered", message.getMessageId(), subscription, e);
+            consumer.nack();
+            return;
+        }
+        // also messages of other buckets and unwatched topics, they are only hints and are covered by the next listing
+        consumer.ack();
+    }
+
+    /**
+     * @return the listener of the topic of the file that was finalized, or null if the message is not about a file of
+     * a watched topic in the bucket
+     */
+    private Runnable listenerOf(PubsubMessage message) {
+        String eventType = message.getAttributesOrDefault("eventType", null);
+        String bucketId = message.getAttributesOrDefault("bucketId", null);
+        String objectId = message.getAttributesOrDefault("objectId", null);
+        if (!"OBJECT_FINALIZE".equals(eventType) || !bucket.equals(bucketId) || objectId == null || !objectId.endsWith(".avro")) {
+            return null;
+        }
+        if (!GCSRawdataUtils.topicAndFilenamePattern.matcher(objectId).matches()) {
+            return null;
+        }
+        return listenerByTopic.get(GCSRawdataUtils.topic(BlobId.of(bucketId, objectId)));
+    }
+
+    @Override
+    public void watch(String topic, Runnable listener) {
+        listenerByTopic.put(topic, listener);
+    }
+
+    @Override
+    public void unwatch(String topic) {
+        listenerByTopic.remove(topic);
+    }
+
+    @Override
+    public boolean isReliable() {
+        return running.get();
+    }
+
+    @Override
+    public void close() {
+        ApiService subscriber;
+        synchronized (this) {
+            closed.set(true);
+            subscriber = subscriberRef.get();
+        }
+        restartExecutor.shutdownNow();
+        subscriber.stopAsync();
+        try {
+            subscriber.awaitTerminated(10, TimeUnit.SECONDS);
+        } catch (TimeoutException | IllegalStateException e) {
+            LOG.warn("Pub/Sub subscriber did not terminate cleanly", e);
+        }
+        if (emulatorChannel != null) {
+            emulatorChannel.shutdownNow();
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package io.descoped.rawdata.avro.cloudstorage;
 
+import com.google.cloud.ReadChannel;
 import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
 import io.descoped.rawdata.avro.RawdataAvroFile;
 import org.apache.avro.file.SeekableInput;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 
@@ -18,17 +22,26 @@ class GCSRawdataAvroFile implements RawdataAvroFile {
     private final Storage storage;
     private final Blob blob;
     private final BlobId blobId;
+    private final int readChunkSize;
+    private final GCSBlobCache blobCache;
+    private final GCSHedgedReads hedgedReads;
 
-    GCSRawdataAvroFile(Storage storage, Blob blob) {
+    GCSRawdataAvroFile(Storage storage, Blob blob, int readChunkSize, GCSBlobCache blobCache, GCSHedgedReads hedgedReads) {
         this.storage = storage;
         this.blob = blob;
         this.blobId = blob.getBlobId();
+        this.readChunkSize = readChunkSize;
+        this.blobCache = blobCache;
+        this.hedgedReads = hedgedReads;
     }
 
     GCSRawdataAvroFile(Storage storage, BlobId blobId) {
         this.storage = storage;
         this.blob = null;
         this.blobId = blobId;
+        this.readChunkSize = 0;
+        this.blobCache = null;
+        this.hedgedReads = null;
     }
 
     @Override
@@ -36,7 +49,16 @@ class GCSRawdataAvroFile implements RawdataAvroFile {
         if (blob == null) {
             throw new IllegalStateException("Cannot get seekableInput of method when blob is null");
         }
-        return new GCSSeekableInput(blob.reader(), blob.getSize());
+        if (blobCache != null) {
+            SeekableInput cachedInput = blobCache.seekableInput(blob.getBlobId(), blob.getSize());
+            if (cachedInput != null) {
+                return cachedInput;
+            }
+        }
+        if (hedgedReads != null) {
+            return new GCSSeekableInput(() -> blob.reader(), hedgedReads, blob.getSize(), readChunkSize);
+        }
+        return new GCSSeekableInput(blob.reader(), blob.getSize(), readChunkSize);
     }
 
     @Override
@@ -44,6 +66,30 @@ class GCSRawdataAvroFile implements RawdataAvroFile {
         return GCSRawdataUtils.getOffsetOfLastBlock(blobId);
     }
 
+    /**
+     * Read the tail in a single ranged request, without going through the blob cache which would download the entire
+     * blob.
+     */
+    @Override
+    public byte[] readTail(long offset) {
+        if (blob == null) {
+            throw new IllegalStateException("Cannot read tail of blob when blob is null");
+        }
+        ByteBuffer tail = ByteBuffer.allocate((int) (blob.getSize() - offset));
+        try (ReadChannel readChannel = blob.reader()) {
+            readChannel.setChunkSize(Math.max(tail.capacity(), 1));
+            readChannel.seek(offset);
+            while (tail.hasRemaining()) {
+                if (readChannel.read(tail) < 0) {
+                    throw new EOFException();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return tail.array();
+    }
+
     @Override
     public void copyFrom(Path sourcePath) {
         try (WriteChannel writeChannel = storage.writer(BlobInfo.newBuilder(blobId)
@@ -63,6 +109,32 @@ class GCSRawdataAvroFile implements RawdataAvroFile {
         }
     }
 
+    @Override
+    public byte[] readBlockIndex() {
+        try {
+            return storage.readAllBytes(GCSRawdataUtils.blockIndexBlobIdOf(blobId));
+        } catch (StorageException e) {
+            if (e.getCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeBlockIndex(byte[] blockIndex) {
+        storage.create(BlobInfo.newBuilder(GCSRawdataUtils.blockIndexBlobIdOf(blobId))
+                .setContentType("application/octet-stream")
+                .build(), blockIndex);
+    }
+
+    @Override
+    public String getIdentity() {
+        // a re-written blob gets a new generation
+        Long generation = blob != null ? blob.getGeneration() : blobId.getGeneration();
+        return blobId.getBucket() + "/" + blobId.getName() + "#" + generation;
+    }
+
     @Override
     public String toString() {
         return "GCSRawdataAvroFile{" +
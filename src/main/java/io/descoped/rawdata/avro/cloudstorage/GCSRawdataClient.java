@@ -2,18 +2,18 @@ package io.descoped.rawdata.avro.cloudstorage;
 
 import com.google.cloud.storage.Storage;
 import io.descoped.rawdata.api.RawdataMetadataClient;
+import io.descoped.rawdata.avro.AvroFileNotificationSource;
 import io.descoped.rawdata.avro.AvroRawdataClient;
+import io.descoped.rawdata.avro.AvroRawdataClientSettings;
 import io.descoped.rawdata.avro.AvroRawdataUtils;
 
-import java.nio.file.Path;
-
 public class GCSRawdataClient extends AvroRawdataClient {
 
     final Storage storage;
     final String bucketName;
 
-    public GCSRawdataClient(Path tmpFileFolder, long avroMaxSeconds, long avroMaxBytes, int avroSyncInterval, int fileListingMinIntervalSeconds, AvroRawdataUtils readOnlyAvroRawdataUtils, AvroRawdataUtils readWriteAvroRawdataUtils, Storage storage, String bucketName) {
-        super(tmpFileFolder, avroMaxSeconds, avroMaxBytes, avroSyncInterval, fileListingMinIntervalSeconds, readOnlyAvroRawdataUtils, readWriteAvroRawdataUtils);
+    public GCSRawdataClient(AvroRawdataClientSettings settings, AvroFileNotificationSource notificationSource, AvroRawdataUtils readOnlyAvroRawdataUtils, AvroRawdataUtils readWriteAvroRawdataUtils, Storage storage, String bucketName) {
+        super(settings, notificationSource, readOnlyAvroRawdataUtils, readWriteAvroRawdataUtils);
         this.storage = storage;
         this.bucketName = bucketName;
     }
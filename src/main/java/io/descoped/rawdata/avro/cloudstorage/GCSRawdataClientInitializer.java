@@ -1,11 +1,15 @@
 package io.descoped.rawdata.avro.cloudstorage;
 
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.FixedCredentialsProvider;
 import com.google.auth.oauth2.ComputeEngineCredentials;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
 import io.descoped.rawdata.api.RawdataClientInitializer;
+import io.descoped.rawdata.avro.AvroFileNotificationSource;
+import io.descoped.rawdata.avro.AvroRawdataClientSettings;
 import io.descoped.rawdata.avro.AvroRawdataUtils;
 import io.descoped.service.provider.api.ProviderName;
 
@@ -34,20 +38,39 @@ public class GCSRawdataClientInitializer implements RawdataClientInitializer {
                 "avro-file.sync.interval",
                 "gcs.bucket-name",
                 "gcs.listing.min-interval-seconds",
+                "gcs.listing.incremental",
+                "gcs.listing.full-interval-seconds",
                 "gcs.credential-provider",
-                "gcs.service-account.key-file"
+                "gcs.service-account.key-file",
+                "gcs.read.chunk-size",
+                "gcs.read.hedge.percentile",
+                "gcs.read.hedge.min-delay-ms",
+                "gcs.read.hedge.max-concurrent",
+                "gcs.cache.folder",
+                "gcs.cache.max-bytes",
+                "gcs.notification.source",
+                "gcs.notification.pubsub.subscription",
+                "gcs.notification.pubsub.emulator-host",
+                "producer.pipeline.capacity",
+                "producer.pipeline.max-wait-ms",
+                "producer.commit.max-delay-ms",
+                "consumer.prefetch.depth",
+                "consumer.prefetch.max-bytes",
+                "consumer.lazy-decoding",
+                "consumer.decode.parallelism",
+                "scan.parallelism"
         );
     }
 
     @Override
     public GCSRawdataClient initialize(Map<String, String> configuration) {
         String bucket = configuration.get("gcs.bucket-name");
-        Path localTempFolder = Path.of(configuration.get("local-temp-folder"));
-        long avroMaxSeconds = Long.parseLong(configuration.get("avro-file.max.seconds"));
-        long avroMaxBytes = Long.parseLong(configuration.get("avro-file.max.bytes"));
-        int avroSyncInterval = Integer.parseInt(configuration.get("avro-file.sync.interval"));
-        int gcsFileListingMaxIntervalSeconds = Integer.parseInt(configuration.get("gcs.listing.min-interval-seconds"));
         String credentialProvider = configuration.getOrDefault("gcs.credential-provider", "service-account");
+        int readChunkSize = Integer.parseInt(configuration.getOrDefault("gcs.read.chunk-size", Integer.toString(2 * 1024 * 1024)));
+        double hedgePercentile = Double.parseDouble(configuration.getOrDefault("gcs.read.hedge.percentile", "0"));
+        long hedgeMinDelayMillis = Long.parseLong(configuration.getOrDefault("gcs.read.hedge.min-delay-ms", "50"));
+        int hedgeMaxConcurrent = Integer.parseInt(configuration.getOrDefault("gcs.read.hedge.max-concurrent", "16"));
+        String notificationSourceType = configuration.getOrDefault("gcs.notification.source", "poll");
 
         GoogleCredentials credentials;
         if ("service-account".equalsIgnoreCase(credentialProvider)) {
@@ -63,10 +86,31 @@ public class GCSRawdataClientInitializer implements RawdataClientInitializer {
             throw new IllegalArgumentException("'gcs.credential-provider' must be one of 'service-account' or 'compute-engine'");
         }
 
-        AvroRawdataUtils readOnlyGcsRawdataUtils = new GCSRawdataUtils(getReadOnlyStorage(credentials), bucket);
+        Storage readOnlyStorage = getReadOnlyStorage(credentials);
+        GCSBlobCache blobCache = null;
+        if (configuration.containsKey("gcs.cache.folder")) {
+            Path cacheFolder = Path.of(configuration.get("gcs.cache.folder"));
+            long cacheMaxBytes = Long.parseLong(configuration.getOrDefault("gcs.cache.max-bytes", Long.toString(1024L * 1024 * 1024)));
+            blobCache = new GCSBlobCache(readOnlyStorage, cacheFolder, cacheMaxBytes);
+        }
+        GCSHedgedReads hedgedReads = hedgePercentile > 0 ? new GCSHedgedReads(hedgePercentile, hedgeMinDelayMillis, hedgeMaxConcurrent) : null;
+        AvroRawdataUtils readOnlyGcsRawdataUtils = new GCSRawdataUtils(readOnlyStorage, bucket, readChunkSize, blobCache, hedgedReads);
         Storage writableStorage = getWritableStorage(credentials);
-        AvroRawdataUtils readWriteGcsRawdataUtils = new GCSRawdataUtils(writableStorage, bucket);
-        return new GCSRawdataClient(localTempFolder, avroMaxSeconds, avroMaxBytes, avroSyncInterval, gcsFileListingMaxIntervalSeconds, readOnlyGcsRawdataUtils, readWriteGcsRawdataUtils, writableStorage, bucket);
+        AvroFileNotificationSource notificationSource;
+        if ("pubsub".equalsIgnoreCase(notificationSourceType)) {
+            String subscription = configuration.get("gcs.notification.pubsub.subscription");
+            if (subscription == null) {
+                throw new IllegalArgumentException("'gcs.notification.pubsub.subscription' is required when 'gcs.notification.source' is 'pubsub'");
+            }
+            String emulatorHost = configuration.get("gcs.notification.pubsub.emulator-host");
+            notificationSource = newPubSubNotificationSource(bucket, subscription, credentials, emulatorHost);
+        } else if ("poll".equalsIgnoreCase(notificationSourceType)) {
+            notificationSource = null;
+        } else {
+            throw new IllegalArgumentException("'gcs.notification.source' must be one of 'poll' or 'pubsub'");
+        }
+        AvroRawdataUtils readWriteGcsRawdataUtils = new GCSRawdataUtils(writableStorage, bucket, readChunkSize, null, null);
+        return new GCSRawdataClient(AvroRawdataClientSettings.of(configuration, "gcs."), notificationSource, readOnlyGcsRawdataUtils, readWriteGcsRawdataUtils, writableStorage, bucket);
     }
 
     static Storage getWritableStorage(GoogleCredentials sourceCredentials) {
@@ -75,6 +119,23 @@ public class GCSRawdataClientInitializer implements RawdataClientInitializer {
         return storage;
     }
 
+    /**
+     * The Pub/Sub client is an optional dependency, the notification source is only loaded when it is configured.
+     */
+    static AvroFileNotificationSource newPubSubNotificationSource(String bucket, String subscription, GoogleCredentials credentials, String emulatorHost) {
+        try {
+            Class.forName("com.google.cloud.pubsub.v1.Subscriber", false, GCSRawdataClientInitializer.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            throw new IllegalStateException("'gcs.notification.source' is 'pubsub', but com.google.cloud:google-cloud-pubsub is not available", e);
+        }
+        return new GCSPubSubNotificationSource(bucket, subscription, getPubSubCredentialsProvider(credentials), emulatorHost);
+    }
+
+    static CredentialsProvider getPubSubCredentialsProvider(GoogleCredentials sourceCredentials) {
+        GoogleCredentials scopedCredentials = sourceCredentials.createScoped(Arrays.asList("https://www.googleapis.com/auth/pubsub"));
+        return FixedCredentialsProvider.create(scopedCredentials);
+    }
+
     static Storage getReadOnlyStorage(GoogleCredentials sourceCredentials) {
         GoogleCredentials scopedCredentials = sourceCredentials.createScoped(Arrays.asList("https://www.googleapis.com/auth/devstorage.read_only"));
         Storage storage = StorageOptions.newBuilder().setCredentials(scopedCredentials).build().getService();
@@ -19,16 +19,31 @@ class GCSRawdataUtils implements AvroRawdataUtils {
 
     final Storage storage;
     final String bucket;
+    final int readChunkSize;
+    final GCSBlobCache blobCache;
+    final GCSHedgedReads hedgedReads;
 
-    GCSRawdataUtils(Storage storage, String bucket) {
+    GCSRawdataUtils(Storage storage, String bucket, int readChunkSize, GCSBlobCache blobCache, GCSHedgedReads hedgedReads) {
         this.storage = storage;
         this.bucket = bucket;
+        this.readChunkSize = readChunkSize;
+        this.blobCache = blobCache;
+        this.hedgedReads = hedgedReads;
     }
 
     static final Pattern topicAndFilenamePattern = Pattern.compile("(?<topic>.+)/(?<filename>[^/]+)");
 
     static final Pattern topicAndMetadataFilenamePattern = Pattern.compile("(?<topic>.+)/metadata/(?<filename>[^/]+)");
 
+    static final Pattern topicAndBlockIndexFilenamePattern = Pattern.compile("(?<topic>.+)/index/(?<filename>[^/]+)");
+
+    /**
+     * @return the id of the blob that holds the block index of the given file, in the index folder of its topic
+     */
+    static BlobId blockIndexBlobIdOf(BlobId blobId) {
+        return BlobId.of(blobId.getBucket(), topic(blobId) + "/index/" + filename(blobId));
+    }
+
     static Matcher topicMatcherOf(BlobId blobId) {
         Matcher topicAndFilenameMatcher = topicAndFilenamePattern.matcher(blobId.getName());
         if (!topicAndFilenameMatcher.matches()) {
@@ -99,16 +114,40 @@ class GCSRawdataUtils implements AvroRawdataUtils {
     Stream<Blob> listTopicFiles(String bucketName, String topic) {
         Page<Blob> page = storage.list(bucketName, Storage.BlobListOption.prefix(topic + "/"));
         Stream<Blob> stream = StreamSupport.stream(page.iterateAll().spliterator(), false);
+        return stream.filter(blob -> !blob.isDirectory() && blob.getSize() > 0)
+                .filter(blob -> !topicAndMetadataFilenamePattern.matcher(blob.getName()).matches())
+                .filter(blob -> !topicAndBlockIndexFilenamePattern.matcher(blob.getName()).matches());
+    }
+
+    Stream<Blob> listTopicFilesFrom(String bucketName, String topic, String filenameOffset) {
+        // ':' is the character after '9', which excludes the metadata and index folders and anything else not named by timestamp
+        Page<Blob> page = storage.list(bucketName,
+                Storage.BlobListOption.prefix(topic + "/"),
+                Storage.BlobListOption.startOffset(topic + "/" + filenameOffset),
+                Storage.BlobListOption.endOffset(topic + "/:"));
+        Stream<Blob> stream = StreamSupport.stream(page.iterateAll().spliterator(), false);
         return stream.filter(blob -> !blob.isDirectory() && blob.getSize() > 0)
                 .filter(blob -> !topicAndMetadataFilenamePattern.matcher(blob.getName()).matches());
     }
 
+    @Override
+    public NavigableMap<Long, RawdataAvroFile> getTopicBlobsFrom(String topic, long fromTimestamp) {
+        NavigableMap<Long, RawdataAvroFile> map = new TreeMap<>();
+        listTopicFilesFrom(bucket, topic, AvroRawdataUtils.filenameOffsetOf(fromTimestamp)).forEach(blob -> {
+            long timestamp = getFromTimestamp(blob.getBlobId());
+            if (timestamp >= fromTimestamp) {
+                map.put(timestamp, new GCSRawdataAvroFile(storage, blob, readChunkSize, blobCache, hedgedReads));
+            }
+        });
+        return map;
+    }
+
     @Override
     public NavigableMap<Long, RawdataAvroFile> getTopicBlobs(String topic) {
         NavigableMap<Long, RawdataAvroFile> map = new TreeMap<>();
         listTopicFiles(bucket, topic).forEach(blob -> {
             long fromTimestamp = getFromTimestamp(blob.getBlobId());
-            map.put(fromTimestamp, new GCSRawdataAvroFile(storage, blob));
+            map.put(fromTimestamp, new GCSRawdataAvroFile(storage, blob, readChunkSize, blobCache, hedgedReads));
         });
         return map;
     }
@@ -117,4 +156,11 @@ class GCSRawdataUtils implements AvroRawdataUtils {
     public AvroFileMetadata newAvrofileMetadata() {
         return new GCSAvroFileMetadata(storage, bucket);
     }
+
+    @Override
+    public void close() {
+        if (hedgedReads != null) {
+            hedgedReads.close();
+        }
+    }
 }
@@ -5,28 +5,76 @@ import org.apache.avro.file.SeekableInput;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
+/**
+ * A buffered range reader over a GCS blob. Bytes are fetched from the read-channel one chunk at a time into a
+ * buffer that is re-used for the lifetime of this input. Reads and seeks within the current chunk are served from
+ * memory, and the read-channel is only re-positioned (which starts a new ranged request) when a read falls outside
+ * of the chunk and is not a sequential continuation of what was last fetched.
+ * <p>
+ * With hedged reads, every read from the read-channel is performed on behalf of the caller by {@link GCSHedgedReads},
+ * and hedging or retrying reads are done with new read-channels of the blob. The read-channel of the read that wins
+ * becomes the read-channel of this input, so that sequential reads continue on the channel that was fastest. Hedged
+ * reads always fill the chunk, as a read that loses may still write to the buffer it was given, and only a buffer
+ * owned by this input can be abandoned to it.
+ */
 class GCSSeekableInput implements SeekableInput {
 
-    private final ReadChannel readChannel;
+    static class RangeRead {
+        final ReadChannel channel;
+        final byte[] bytes;
+        final int n;
+
+        RangeRead(ReadChannel channel, byte[] bytes, int n) {
+            this.channel = channel;
+            this.bytes = bytes;
+            this.n = n;
+        }
+    }
+
+    private ReadChannel readChannel;
+    private final Supplier<ReadChannel> readChannels; // null when reads are not hedged
+    private final GCSHedgedReads hedgedReads; // null when reads are not hedged
+    private final int chunkSize;
     private final long size;
-    private final AtomicLong positionOfNextByteToBeRead = new AtomicLong(0);
+    private byte[] chunk; // replaced by the buffer of a hedging or retrying read that wins
+
+    private long chunkStart = 0; // position in blob of first byte in chunk
+    private int chunkLength = 0; // number of valid bytes in chunk
+    private long channelPosition = 0; // position in blob of next byte to be read from channel
+    private long positionOfNextByteToBeRead = 0;
+
+    GCSSeekableInput(ReadChannel readChannel, long size, int chunkSize) {
+        this(readChannel, null, null, size, chunkSize);
+    }
+
+    GCSSeekableInput(Supplier<ReadChannel> readChannels, GCSHedgedReads hedgedReads, long size, int chunkSize) {
+        this(readChannels.get(), readChannels, hedgedReads, size, chunkSize);
+    }
 
-    GCSSeekableInput(ReadChannel readChannel, long size) {
+    private GCSSeekableInput(ReadChannel readChannel, Supplier<ReadChannel> readChannels, GCSHedgedReads hedgedReads, long size, int chunkSize) {
         this.readChannel = readChannel;
+        this.readChannels = readChannels;
+        this.hedgedReads = hedgedReads;
+        this.chunkSize = chunkSize;
         this.size = size;
+        this.chunk = new byte[(int) Math.max(1, Math.min(chunkSize, size))];
+        readChannel.setChunkSize(chunkSize);
     }
 
     @Override
     public void seek(long p) throws IOException {
-        readChannel.seek(p);
-        positionOfNextByteToBeRead.set(p);
+        if (p < 0 || p > size) {
+            throw new IOException(String.format("Cannot seek to position %d, blob size is %d", p, size));
+        }
+        positionOfNextByteToBeRead = p; // channel is re-positioned lazily by next read outside of chunk
     }
 
     @Override
     public long tell() {
-        return positionOfNextByteToBeRead.get();
+        return positionOfNextByteToBeRead;
     }
 
     @Override
@@ -36,13 +84,107 @@ class GCSSeekableInput implements SeekableInput {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (positionOfNextByteToBeRead >= size) {
+            return -1;
+        }
+        if (!isInChunk(positionOfNextByteToBeRead)) {
+            if (len >= chunk.length && hedgedReads == null) {
+                // large read, bypass chunk buffer
+                int n = readFromChannel(positionOfNextByteToBeRead, b, off, len);
+                if (n > 0) {
+                    positionOfNextByteToBeRead += n;
+                }
+                return n;
+            }
+            fillChunk(positionOfNextByteToBeRead);
+            if (chunkLength == 0) {
+                return -1;
+            }
+        }
+        int offsetInChunk = (int) (positionOfNextByteToBeRead - chunkStart);
+        int n = Math.min(len, chunkLength - offsetInChunk);
+        System.arraycopy(chunk, offsetInChunk, b, off, n);
+        positionOfNextByteToBeRead += n;
+        return n;
+    }
+
+    private boolean isInChunk(long position) {
+        return chunkStart <= position && position < chunkStart + chunkLength;
+    }
+
+    private void fillChunk(long position) throws IOException {
+        chunkStart = position;
+        chunkLength = 0;
+        int n;
+        while (chunkLength < chunk.length && (n = readIntoChunk(position + chunkLength, chunkLength, chunk.length - chunkLength)) != -1) {
+            chunkLength += n;
+        }
+    }
+
+    private int readIntoChunk(long position, int off, int len) throws IOException {
+        if (hedgedReads != null) {
+            return hedgedReadIntoChunk(position, off, len);
+        }
+        return readFromChannel(position, chunk, off, len);
+    }
+
+    private int readFromChannel(long position, byte[] b, int off, int len) throws IOException {
+        if (position != channelPosition) {
+            readChannel.seek(position);
+            channelPosition = position;
+        }
         int n = readChannel.read(ByteBuffer.wrap(b, off, len));
         if (n > 0) {
-            positionOfNextByteToBeRead.addAndGet(n);
+            channelPosition += n;
         }
         return n;
     }
 
+    /**
+     * The primary read reads straight into the chunk, while a hedging or retrying read reads into a new buffer of
+     * the size of the chunk, which becomes the chunk if that read wins. The chunk given to a primary read that loses
+     * is abandoned to it.
+     */
+    private int hedgedReadIntoChunk(long position, int off, int len) throws IOException {
+        ReadChannel primaryChannel = readChannel;
+        long primaryChannelPosition = channelPosition;
+        byte[] primaryBuffer = chunk;
+        channelPosition = -1; // unknown until a read has succeeded
+        AtomicBoolean primaryStarted = new AtomicBoolean(false);
+        RangeRead rangeRead = hedgedReads.read(() -> {
+            if (primaryStarted.compareAndSet(false, true)) {
+                return readRange(primaryChannel, primaryChannelPosition, position, primaryBuffer, off, len);
+            }
+            ReadChannel channel = readChannels.get();
+            channel.setChunkSize(chunkSize);
+            try {
+                return readRange(channel, -1, position, new byte[primaryBuffer.length], off, len);
+            } catch (IOException | RuntimeException e) {
+                channel.close(); // a failed hedging or retry read never wins, so its channel is not discarded
+                throw e;
+            }
+        }, discarded -> discarded.channel.close());
+        if (rangeRead.channel != primaryChannel) {
+            primaryChannel.close(); // aborts the primary read if it is still in progress
+            readChannel = rangeRead.channel;
+            System.arraycopy(primaryBuffer, 0, rangeRead.bytes, 0, off); // the part of the chunk that was already filled
+            chunk = rangeRead.bytes;
+        }
+        channelPosition = rangeRead.n > 0 ? position + rangeRead.n : position;
+        return rangeRead.n;
+    }
+
+    private static RangeRead readRange(ReadChannel channel, long channelPosition, long position, byte[] bytes, int off, int len) throws IOException {
+        if (position != channelPosition) {
+            channel.seek(position);
+        }
+        int n = channel.read(ByteBuffer.wrap(bytes, off, len));
+        return new RangeRead(channel, bytes, n);
+    }
+
     @Override
     public void close() {
         readChannel.close();
@@ -1,6 +1,8 @@
 package io.descoped.rawdata.avro.filesystem;
 
 import io.descoped.rawdata.api.RawdataClientInitializer;
+import io.descoped.rawdata.avro.AvroFileNotificationSource;
+import io.descoped.rawdata.avro.AvroRawdataClientSettings;
 import io.descoped.rawdata.avro.AvroRawdataUtils;
 import io.descoped.service.provider.api.ProviderName;
 
@@ -24,20 +26,28 @@ public class FilesystemAvroRawdataClientInitializer implements RawdataClientInit
                 "avro-file.max.bytes",
                 "avro-file.sync.interval",
                 "listing.min-interval-seconds",
-                "filesystem.storage-folder"
+                "listing.incremental",
+                "listing.full-interval-seconds",
+                "filesystem.storage-folder",
+                "filesystem.watch",
+                "producer.pipeline.capacity",
+                "producer.pipeline.max-wait-ms",
+                "producer.commit.max-delay-ms",
+                "consumer.prefetch.depth",
+                "consumer.prefetch.max-bytes",
+                "consumer.lazy-decoding",
+                "consumer.decode.parallelism",
+                "scan.parallelism"
         );
     }
 
     @Override
     public FilesystemRawdataClient initialize(Map<String, String> configuration) {
-        Path localTempFolder = Path.of(configuration.get("local-temp-folder"));
-        long avroMaxSeconds = Long.parseLong(configuration.get("avro-file.max.seconds"));
-        long avroMaxBytes = Long.parseLong(configuration.get("avro-file.max.bytes"));
-        int avroSyncInterval = Integer.parseInt(configuration.get("avro-file.sync.interval"));
-        int minListingIntervalSeconds = Integer.parseInt(configuration.get("listing.min-interval-seconds"));
         Path storageFolder = Path.of(configuration.get("filesystem.storage-folder"));
+        boolean watch = Boolean.parseBoolean(configuration.getOrDefault("filesystem.watch", "false"));
+        AvroFileNotificationSource notificationSource = watch ? new FilesystemTopicWatcher(storageFolder) : null;
         AvroRawdataUtils readOnlyFilesystemRawdataUtils = new FilesystemRawdataUtils(storageFolder);
         AvroRawdataUtils readWriteFilesystemRawdataUtils = new FilesystemRawdataUtils(storageFolder);
-        return new FilesystemRawdataClient(localTempFolder, avroMaxSeconds, avroMaxBytes, avroSyncInterval, minListingIntervalSeconds, readOnlyFilesystemRawdataUtils, readWriteFilesystemRawdataUtils, storageFolder);
+        return new FilesystemRawdataClient(AvroRawdataClientSettings.of(configuration, ""), notificationSource, readOnlyFilesystemRawdataUtils, readWriteFilesystemRawdataUtils, storageFolder);
     }
 }
@@ -6,7 +6,10 @@ import org.apache.avro.file.SeekableInput;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 
 class FilesystemRawdataAvroFile implements RawdataAvroFile {
 
@@ -34,7 +37,63 @@ class FilesystemRawdataAvroFile implements RawdataAvroFile {
     public void copyFrom(Path sourcePath) {
         try {
             Files.createDirectories(path.getParent());
-            Files.copy(sourcePath, path);
+            // copy to a hidden file first, so that consumers never see a partially written file
+            Path tmpPath = path.resolveSibling("." + path.getFileName() + ".tmp");
+            try {
+                Files.copy(sourcePath, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpPath);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The block index is stored in a hidden file next to the file, which is not listed.
+     */
+    Path blockIndexPath() {
+        return path.resolveSibling("." + path.getFileName() + ".index");
+    }
+
+    @Override
+    public byte[] readBlockIndex() {
+        try {
+            return Files.readAllBytes(blockIndexPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void writeBlockIndex(byte[] blockIndex) {
+        Path indexPath = blockIndexPath();
+        try {
+            Files.createDirectories(path.getParent());
+            Path tmpPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            try {
+                Files.write(tmpPath, blockIndex);
+                Files.move(tmpPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpPath);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A file that is re-written at the same path gets a new identity, as long as its size or modification time
+     * changes.
+     */
+    @Override
+    public String getIdentity() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return path + "#" + attributes.size() + "#" + attributes.lastModifiedTime().toMillis();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -1,7 +1,9 @@
 package io.descoped.rawdata.avro.filesystem;
 
 import io.descoped.rawdata.api.RawdataMetadataClient;
+import io.descoped.rawdata.avro.AvroFileNotificationSource;
 import io.descoped.rawdata.avro.AvroRawdataClient;
+import io.descoped.rawdata.avro.AvroRawdataClientSettings;
 import io.descoped.rawdata.avro.AvroRawdataUtils;
 
 import java.io.IOException;
@@ -12,8 +14,8 @@ public class FilesystemRawdataClient extends AvroRawdataClient {
 
     final Path storageFolder;
 
-    public FilesystemRawdataClient(Path tmpFileFolder, long avroMaxSeconds, long avroMaxBytes, int avroSyncInterval, int fileListingMinIntervalSeconds, AvroRawdataUtils readOnlyAvroRawdataUtils, AvroRawdataUtils readWriteAvroRawdataUtils, Path storageFolder) {
-        super(tmpFileFolder, avroMaxSeconds, avroMaxBytes, avroSyncInterval, fileListingMinIntervalSeconds, readOnlyAvroRawdataUtils, readWriteAvroRawdataUtils);
+    public FilesystemRawdataClient(AvroRawdataClientSettings settings, AvroFileNotificationSource notificationSource, AvroRawdataUtils readOnlyAvroRawdataUtils, AvroRawdataUtils readWriteAvroRawdataUtils, Path storageFolder) {
+        super(settings, notificationSource, readOnlyAvroRawdataUtils, readWriteAvroRawdataUtils);
         this.storageFolder = storageFolder;
     }
 
@@ -11,6 +11,7 @@ import java.util.NavigableMap;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 class FilesystemRawdataUtils implements AvroRawdataUtils {
 
@@ -28,6 +29,13 @@ class FilesystemRawdataUtils implements AvroRawdataUtils {
         return path.getFileName().toString();
     }
 
+    /**
+     * @return true for files that are being copied into the topic folder
+     */
+    static boolean isHidden(Path path) {
+        return filename(path).startsWith(".");
+    }
+
     static final Pattern filenamePattern = Pattern.compile("(?<from>[^_]+)_(?<count>[0123456789]+)_(?<lastBlockOffset>[0123456789]+)_(?<position>.+)\\.avro");
 
     static Matcher filenameMatcherOf(Path path) {
@@ -83,7 +91,7 @@ class FilesystemRawdataUtils implements AvroRawdataUtils {
             if (!topicFolder.toFile().isDirectory()) {
                 return map;
             }
-            Files.list(topicFolder).filter(path -> path.toFile().isFile() && path.toFile().length() > 0).forEach(path -> {
+            Files.list(topicFolder).filter(path -> !isHidden(path) && path.toFile().isFile() && path.toFile().length() > 0).forEach(path -> {
                 long fromTimestamp = getFromTimestamp(path);
                 map.put(fromTimestamp, new FilesystemRawdataAvroFile(path));
             });
@@ -93,6 +101,31 @@ class FilesystemRawdataUtils implements AvroRawdataUtils {
         }
     }
 
+    @Override
+    public NavigableMap<Long, RawdataAvroFile> getTopicBlobsFrom(String topic, long fromTimestamp) {
+        try {
+            NavigableMap<Long, RawdataAvroFile> map = new TreeMap<>();
+            Path topicFolder = storageFolder.resolve(topic);
+            if (!topicFolder.toFile().isDirectory()) {
+                return map;
+            }
+            String filenameOffset = AvroRawdataUtils.filenameOffsetOf(fromTimestamp);
+            try (Stream<Path> stream = Files.list(topicFolder)) {
+                stream.filter(path -> filename(path).compareTo(filenameOffset) >= 0) // skip older files before parsing
+                        .filter(path -> !isHidden(path) && path.toFile().isFile() && path.toFile().length() > 0)
+                        .forEach(path -> {
+                            long timestamp = getFromTimestamp(path);
+                            if (timestamp >= fromTimestamp) {
+                                map.put(timestamp, new FilesystemRawdataAvroFile(path));
+                            }
+                        });
+            }
+            return map;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public AvroFileMetadata newAvrofileMetadata() {
         return new FilesystemAvroFileMetadata(storageFolder);
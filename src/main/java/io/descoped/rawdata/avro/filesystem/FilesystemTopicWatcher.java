@@ -0,0 +1,233 @@
+package io.descoped.rawdata.avro.filesystem;
+
+import io.descoped.rawdata.avro.AvroFileNotificationSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Notifies listeners when files are created in topic folders, using a {@link WatchService}. If the watch-service
+ * reports an overflow, events may have been lost and this source reports itself as unreliable from then on, which
+ * makes consumers fall back to polling.
+ * <p>
+ * Consumers may subscribe to a topic before it is produced to. Until the topic folder exists, its nearest existing
+ * parent folder is watched instead, and the topic folder is registered as soon as it appears. Listeners are notified
+ * when that happens, as files may have been created in the folder before it was registered.
+ * <p>
+ * Whether watch events are delivered promptly is probed by the watch thread when it starts, by creating a file in a
+ * temporary folder inside the storage folder. Platforms and mounts without native watch support deliver events seconds
+ * late, which is slower than polling the listing. The watcher reports itself as unreliable until the probe has
+ * succeeded, and from then on if it fails.
+ */
+class FilesystemTopicWatcher implements AvroFileNotificationSource {
+
+    static final Logger LOG = LoggerFactory.getLogger(FilesystemTopicWatcher.class);
+
+    static final long PROBE_TIMEOUT_MILLIS = 1000;
+
+    final Path storageFolder;
+    final WatchService watchService;
+    final Map<String, Runnable> listenerByTopic = new HashMap<>(); // guarded by this
+    final Map<String, WatchKey> watchKeyByTopic = new HashMap<>(); // key of topic folder or of its nearest parent, guarded by this
+    final AtomicBoolean reliable = new AtomicBoolean(false); // until probe has succeeded
+    final AtomicBoolean eventsLost = new AtomicBoolean(false);
+    final Thread watchThread;
+
+    FilesystemTopicWatcher(Path storageFolder) {
+        this.storageFolder = storageFolder;
+        try {
+            this.watchService = storageFolder.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.watchThread = new Thread(this::processEvents, "rawdata-filesystem-watcher");
+        this.watchThread.setDaemon(true);
+        this.watchThread.start();
+    }
+
+    /**
+     * Run by the watch thread before it starts processing events. Events of topic folders that are taken while
+     * waiting for the probe event are processed as usual.
+     */
+    private boolean eventsArePromptlyDelivered() throws InterruptedException {
+        Path probeFolder = null;
+        try {
+            Files.createDirectories(storageFolder);
+            probeFolder = Files.createTempDirectory(storageFolder, ".watch-probe");
+            WatchKey probeKey = probeFolder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            try {
+                Files.createFile(probeFolder.resolve("probe"));
+                long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MILLIS;
+                long remaining;
+                while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                    WatchKey watchKey = watchService.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (watchKey == probeKey) {
+                        return true;
+                    }
+                    if (watchKey != null) {
+                        processEvents(watchKey);
+                    }
+                }
+                return false;
+            } finally {
+                probeKey.cancel();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to probe file-system watch support of {}", storageFolder, e);
+            return false;
+        } finally {
+            if (probeFolder != null) {
+                try {
+                    Files.deleteIfExists(probeFolder.resolve("probe"));
+                    Files.deleteIfExists(probeFolder);
+                } catch (IOException e) {
+                    LOG.warn("Unable to delete watch probe folder {}", probeFolder, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void watch(String topic, Runnable listener) {
+        synchronized (this) {
+            listenerByTopic.put(topic, listener);
+            register(topic);
+        }
+    }
+
+    /**
+     * Register the topic folder, or its nearest existing parent while the topic folder does not exist.
+     *
+     * @return true if the topic folder itself is registered
+     */
+    private synchronized boolean register(String topic) {
+        Path topicFolder = storageFolder.resolve(topic).toAbsolutePath();
+        try {
+            for (; ; ) {
+                Path folder = nearestExistingFolder(topicFolder);
+                WatchKey watchKey = folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+                WatchKey previousWatchKey = watchKeyByTopic.put(topic, watchKey);
+                if (previousWatchKey != null && previousWatchKey != watchKey) {
+                    cancelIfUnused(previousWatchKey);
+                }
+                if (folder.equals(topicFolder)) {
+                    return true;
+                }
+                if (nearestExistingFolder(topicFolder).equals(folder)) {
+                    return false; // any folder created from here on is reported by the watched parent
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Path nearestExistingFolder(Path folder) {
+        Path existing = folder.toAbsolutePath();
+        while (!Files.isDirectory(existing)) {
+            existing = existing.getParent();
+            if (existing == null) {
+                throw new IllegalStateException("No existing parent folder of " + folder);
+            }
+        }
+        return existing;
+    }
+
+    private synchronized void cancelIfUnused(WatchKey watchKey) {
+        if (!watchKeyByTopic.containsValue(watchKey)) {
+            watchKey.cancel();
+        }
+    }
+
+    @Override
+    public void unwatch(String topic) {
+        synchronized (this) {
+            listenerByTopic.remove(topic);
+            WatchKey watchKey = watchKeyByTopic.remove(topic);
+            if (watchKey != null) {
+                cancelIfUnused(watchKey);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReliable() {
+        return reliable.get();
+    }
+
+    private void processEvents() {
+        try {
+            if (eventsArePromptlyDelivered()) {
+                reliable.set(!eventsLost.get());
+            } else {
+                LOG.info("File-system of {} does not deliver watch events promptly, consumers will poll for new files", storageFolder);
+            }
+            for (; ; ) {
+                processEvents(watchService.take());
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void processEvents(WatchKey watchKey) {
+        boolean newFiles = false;
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                if (eventsLost.compareAndSet(false, true)) {
+                    reliable.set(false);
+                    LOG.warn("File-system watch events were lost, consumers will fall back to polling. Folder: {}", watchKey.watchable());
+                }
+                newFiles = true;
+            } else if (!((Path) event.context()).getFileName().toString().startsWith(".")) {
+                newFiles = true;
+            }
+        }
+        boolean valid = watchKey.reset();
+        List<Runnable> listeners = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, WatchKey> entry : new ArrayList<>(watchKeyByTopic.entrySet())) {
+                if (entry.getValue() != watchKey) {
+                    continue;
+                }
+                String topic = entry.getKey();
+                boolean topicFolderWatched = storageFolder.resolve(topic).toAbsolutePath().equals(watchKey.watchable());
+                if (topicFolderWatched && valid) {
+                    if (newFiles) {
+                        listeners.add(listenerByTopic.get(topic));
+                    }
+                } else if (register(topic) || topicFolderWatched) {
+                    // topic folder appeared or was removed, files may have changed before it was (re-)registered
+                    listeners.add(listenerByTopic.get(topic));
+                }
+            }
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        watchThread.interrupt();
+    }
+}
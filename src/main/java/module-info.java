@@ -9,6 +9,15 @@ module io.descoped.rawdata.avro {
     requires google.cloud.core;
     requires com.google.auth.oauth2;
     requires com.google.auth;
+    requires com.google.api.apicommon;
+
+    // only needed with gcs.notification.source=pubsub
+    requires static gax.grpc;
+    requires static io.grpc;
+    requires static google.cloud.pubsub;
+    requires static proto.google.cloud.pubsub.v1;
+
+    exports io.descoped.rawdata.avro.api;
 
     provides io.descoped.rawdata.api.RawdataClientInitializer with
             io.descoped.rawdata.avro.cloudstorage.GCSRawdataClientInitializer,
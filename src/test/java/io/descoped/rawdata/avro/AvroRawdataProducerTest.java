@@ -0,0 +1,305 @@
+package io.descoped.rawdata.avro;
+
+import io.descoped.rawdata.api.RawdataClientInitializer;
+import io.descoped.rawdata.api.RawdataClosedException;
+import io.descoped.rawdata.api.RawdataMessage;
+import io.descoped.rawdata.avro.api.ExtendedRawdataClient;
+import io.descoped.service.provider.api.ProviderConfigurator;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableInput;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class AvroRawdataProducerTest {
+
+    AvroRawdataClient client;
+
+    @BeforeMethod
+    public void createRawdataClient() throws IOException {
+        Map<String, String> configuration = new LinkedHashMap<>();
+        configuration.put("local-temp-folder", "target/_tmp_avro_producer_");
+        configuration.put("avro-file.max.seconds", "60");
+        configuration.put("avro-file.max.bytes", Long.toString(1024 * 1024));
+        configuration.put("avro-file.sync.interval", Long.toString(200));
+        configuration.put("listing.min-interval-seconds", "0");
+        configuration.put("filesystem.storage-folder", "target/rawdata-store-producer");
+        for (String folder : List.of(configuration.get("local-temp-folder"), configuration.get("filesystem.storage-folder"))) {
+            Path path = Paths.get(folder);
+            if (Files.exists(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+            Files.createDirectories(path);
+        }
+        client = (AvroRawdataClient) ProviderConfigurator.configure(configuration, "filesystem", RawdataClientInitializer.class);
+    }
+
+    @AfterMethod
+    public void closeRawdataClient() throws Exception {
+        client.close();
+    }
+
+    @Test
+    public void thatStoredBlockIndexIsReadBackAndMatchesBlocksOfUploadedFile() throws Exception {
+        try (ExtendedRawdataClient.Producer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 20; i++) {
+                producer.publish(RawdataMessage.builder().position("p" + i).put("payload", new byte[50]).build());
+            }
+        }
+        NavigableMap<Long, RawdataAvroFile> files = client.readOnlyAvroRawdataUtils.getTopicBlobs("the-topic");
+        assertEquals(files.size(), 1);
+        RawdataAvroFile file = files.firstEntry().getValue();
+
+        // offsets and first positions of the blocks, as found by reading the file
+        List<Long> blockOffsets = new ArrayList<>();
+        List<String> firstPositions = new ArrayList<>();
+        try (DataFileReader<RawdataMessage> reader = new DataFileReader<>(file.seekableInput(), new RawdataMessageDatumReader(null))) {
+            while (reader.hasNext()) {
+                long offset = reader.previousSync();
+                RawdataMessage message = reader.next();
+                if (blockOffsets.isEmpty() || blockOffsets.get(blockOffsets.size() - 1) != offset) {
+                    blockOffsets.add(offset);
+                    firstPositions.add(message.position());
+                }
+            }
+        }
+        assertTrue(blockOffsets.size() > 1);
+
+        try (DataFileReader<RawdataMessage> reader = new DataFileReader<>(file.seekableInput(), new RawdataMessageDatumReader(null))) {
+            assertNotNull(file.readBlockIndex());
+            AvroBlockIndex blockIndex = client.blockIndexOf(file, reader);
+            assertEquals(blockIndex.size(), blockOffsets.size());
+            for (int i = 0; i < blockIndex.size(); i++) {
+                assertEquals(blockIndex.offsets[i], (long) blockOffsets.get(i));
+                assertEquals(blockIndex.firstPositions[i], firstPositions.get(i));
+            }
+            assertTrue(blockIndex.sorted);
+            assertNotNull(blockIndex.positionFilters); // only present in stored index
+        }
+
+        // the block index is stored next to the file, the offset of last block given by filename is the offset in the file
+        assertEquals(file.getOffsetOfLastBlock(), (long) blockOffsets.get(blockOffsets.size() - 1));
+        try (DataFileReader<RawdataMessage> reader = new DataFileReader<>(file.seekableInput(), new RawdataMessageDatumReader(null))) {
+            reader.seek(file.getOffsetOfLastBlock());
+            assertEquals(reader.next().position(), firstPositions.get(firstPositions.size() - 1));
+        }
+    }
+
+    @Test
+    public void thatBlockIndexBuiltFromBlockHeadersMatchesStoredBlockIndex() throws Exception {
+        try (ExtendedRawdataClient.Producer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 20; i++) {
+                // some positions are longer than the bytes read from the start of each block
+                String position = i % 3 == 1 ? "p" + i + "-" + "x".repeat(AvroBlockIndex.BLOCK_PREFIX_BYTES) : "p" + i;
+                producer.publish(RawdataMessage.builder().position(position).put("payload", new byte[50]).build());
+            }
+        }
+        RawdataAvroFile file = client.readOnlyAvroRawdataUtils.getTopicBlobs("the-topic").firstEntry().getValue();
+        try (DataFileReader<RawdataMessage> reader = new DataFileReader<>(file.seekableInput(), new RawdataMessageDatumReader(null));
+             SeekableInput input = file.seekableInput()) {
+            AvroBlockIndex storedIndex = client.blockIndexOf(file, reader);
+            AvroBlockIndex blockIndex = AvroBlockIndex.ofBlockHeaders(input, storedIndex.offsets[0]);
+            assertTrue(blockIndex.size() > 1);
+            assertEquals(blockIndex.offsets, storedIndex.offsets);
+            assertEquals(blockIndex.firstIds, storedIndex.firstIds);
+            assertEquals(blockIndex.firstPositions, storedIndex.firstPositions);
+            assertEquals(blockIndex.counts, storedIndex.counts);
+        }
+    }
+
+    @Test
+    public void thatUploadedFilesDoNotExceedMaxBytesAndHaveStoredBlockIndex() throws Exception {
+        int maxBytes = 4096;
+        int maxRecordBytes = 100;
+        try (AvroRawdataProducer producer = new AvroRawdataProducer(client.readWriteAvroRawdataUtils, Paths.get("target/_tmp_avro_producer_"), 60, maxBytes, 200, "the-topic", 0, 0, 1000)) {
+            for (int i = 0; i < 500; i++) {
+                producer.publish(RawdataMessage.builder().position("p" + i).put("payload", new byte[50]).build());
+                if (producer.rolloverPending) {
+                    Thread.sleep(1); // files can only roll over to a new millisecond, the next message rolls over
+                }
+            }
+        }
+        NavigableMap<Long, RawdataAvroFile> files = client.readOnlyAvroRawdataUtils.getTopicBlobs("the-topic");
+        assertTrue(files.size() > 1);
+        for (RawdataAvroFile file : files.values()) {
+            try (SeekableInput input = file.seekableInput()) {
+                // the file is rolled over after the record that exceeds the limit
+                assertTrue(input.length() <= maxBytes + maxRecordBytes, file.getIdentity() + " has " + input.length() + " bytes");
+            }
+            // stored whatever its size relative to the file
+            assertNotNull(file.readBlockIndex(), file.getIdentity() + " has no block index");
+        }
+    }
+
+    /**
+     * Only supports reading the tail of the file, so that reading the file through its header fails.
+     */
+    static class TailOnlyAvroFile implements RawdataAvroFile {
+        final RawdataAvroFile delegate;
+
+        TailOnlyAvroFile(RawdataAvroFile delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public SeekableInput seekableInput() {
+            throw new AssertionError("File was read through its header instead of only its tail");
+        }
+
+        @Override
+        public long getOffsetOfLastBlock() {
+            return delegate.getOffsetOfLastBlock();
+        }
+
+        @Override
+        public byte[] readTail(long offset) {
+            return delegate.readTail(offset);
+        }
+
+        @Override
+        public void copyFrom(Path source) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] readBlockIndex() {
+            return delegate.readBlockIndex();
+        }
+
+        @Override
+        public void writeBlockIndex(byte[] blockIndex) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getIdentity() {
+            return delegate.getIdentity();
+        }
+    }
+
+    @Test
+    public void thatLastMessageOfProducedFileIsReadFromTail() throws Exception {
+        try (ExtendedRawdataClient.Producer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 20; i++) {
+                producer.publish(RawdataMessage.builder().position("p" + i).put("payload", new byte[50]).build());
+            }
+        }
+        RawdataAvroFile file = client.readOnlyAvroRawdataUtils.getTopicBlobs("the-topic").lastEntry().getValue();
+        assertEquals(client.readLastMessage(new TailOnlyAvroFile(file)).position(), "p19");
+    }
+
+    /**
+     * Metadata of files that fail to be uploaded.
+     */
+    static class UploadFailingAvroFileMetadata extends AvroFileMetadata {
+        @Override
+        public RawdataAvroFile toRawdataAvroFile(String topic) {
+            long offsetOfLastBlock = getSyncOfLastBlock();
+            String filename = toFilename();
+            return new RawdataAvroFile() {
+                @Override
+                public SeekableInput seekableInput() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public long getOffsetOfLastBlock() {
+                    return offsetOfLastBlock;
+                }
+
+                @Override
+                public void copyFrom(Path source) {
+                    throw new RuntimeException("Simulated upload failure");
+                }
+
+                @Override
+                public byte[] readBlockIndex() {
+                    return null;
+                }
+
+                @Override
+                public void writeBlockIndex(byte[] blockIndex) {
+                }
+
+                @Override
+                public String getIdentity() {
+                    return filename;
+                }
+            };
+        }
+    }
+
+    @Test
+    public void thatScheduledCommitIsCancelledWhenFileRollsOver() throws Exception {
+        try (AvroRawdataProducer producer = new AvroRawdataProducer(client.readWriteAvroRawdataUtils, Paths.get("target/_tmp_avro_producer_"), 60, 4096, 200, "the-topic", 0, 0, 60_000)) {
+            producer.publish(RawdataMessage.builder().position("a").put("payload", new byte[50]).build());
+            assertEquals(producer.commitScheduler.getQueue().size(), 0); // no commit timer without acknowledged messages
+            List<CompletableFuture<Void>> acknowledgements = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                acknowledgements.add(producer.publishAcknowledged(RawdataMessage.builder().position("p" + i).put("payload", new byte[50]).build()));
+                Thread.sleep(i % 20 == 0 ? 1 : 0); // files can only roll over to a new millisecond
+            }
+            acknowledgements.get(0).get(10, TimeUnit.SECONDS); // the first file is uploaded on rollover, not by its scheduled commit
+            assertEquals(producer.commitScheduler.getQueue().size(), 1); // only the commit of the active file
+        }
+    }
+
+    @Test
+    public void thatAcknowledgementCompletesExceptionallyWhenUploadFails() throws Exception {
+        AvroRawdataUtils uploadFailingUtils = new AvroRawdataUtils() {
+            @Override
+            public NavigableMap<Long, RawdataAvroFile> getTopicBlobs(String topic) {
+                return new TreeMap<>();
+            }
+
+            @Override
+            public AvroFileMetadata newAvrofileMetadata() {
+                return new UploadFailingAvroFileMetadata();
+            }
+        };
+        try (AvroRawdataProducer producer = new AvroRawdataProducer(uploadFailingUtils, Paths.get("target/_tmp_avro_producer_"), 60, 1024 * 1024, 200, "the-topic", 0, 0, 100)) {
+            CompletableFuture<Void> acknowledgement = producer.publishAcknowledged(RawdataMessage.builder().position("a").put("payload", new byte[10]).build());
+            Path failedFile = producer.pathRef.get();
+            try {
+                acknowledgement.get(10, TimeUnit.SECONDS);
+                fail("Expected acknowledgement to fail");
+            } catch (ExecutionException e) {
+                assertEquals(e.getCause().getMessage(), "Simulated upload failure");
+            }
+            assertTrue(producer.isClosed(), "producer is closed right after failed acknowledgement");
+            try {
+                producer.publishAcknowledged(RawdataMessage.builder().position("b").put("payload", new byte[10]).build());
+                fail("Expected publish to closed producer to fail");
+            } catch (RawdataClosedException e) {
+                // expected
+            }
+            assertFalse(Files.exists(failedFile), "file that failed to upload is deleted");
+            assertFalse(Files.exists(producer.pathRef.get()), "active file is deleted");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package io.descoped.rawdata.avro;
+
+import de.huxhorn.sulky.ulid.ULID;
+import io.descoped.rawdata.api.RawdataMessage;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding messages to and decoding messages from the binary record form through generic records, with the
+ * specialized datum writer and reader. Run with the main method, after compiling the test sources.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawdataMessageCodecBenchmark {
+
+    @Param({"2", "16"})
+    int entries;
+
+    @Param({"64", "4096"})
+    int valueSize;
+
+    RawdataMessage message;
+    byte[] encoded;
+
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    BinaryEncoder encoder;
+    BinaryDecoder decoder;
+
+    final GenericDatumWriter<GenericRecord> genericWriter = new GenericDatumWriter<>(AvroRawdataProducer.schema);
+    final GenericDatumReader<GenericRecord> genericReader = new GenericDatumReader<>(AvroRawdataProducer.schema);
+    final RawdataMessageDatumWriter specializedWriter = new RawdataMessageDatumWriter();
+    final RawdataMessageDatumReader specializedReader = new RawdataMessageDatumReader(null);
+
+    @Setup
+    public void setup() throws IOException {
+        RawdataMessage.Builder builder = RawdataMessage.builder()
+                .ulid(new ULID().nextValue())
+                .orderingGroup("group")
+                .sequenceNumber(42)
+                .position("position-1234567890");
+        for (int i = 0; i < entries; i++) {
+            builder.put("payload-" + i, new byte[valueSize]);
+        }
+        message = builder.build();
+        encoded = encodeSpecialized();
+    }
+
+    @Benchmark
+    public byte[] encodeGeneric() throws IOException {
+        GenericRecord record = new GenericData.Record(AvroRawdataProducer.schema);
+        record.put("id", new GenericData.Fixed(AvroRawdataProducer.schema.getField("id").schema(), message.ulid().toBytes()));
+        record.put("orderingGroup", message.orderingGroup());
+        record.put("sequenceNumber", message.sequenceNumber());
+        record.put("position", message.position());
+        Map<String, ByteBuffer> data = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : message.data().entrySet()) {
+            data.put(entry.getKey(), ByteBuffer.wrap(entry.getValue()));
+        }
+        record.put("data", data);
+        buffer.reset();
+        encoder = EncoderFactory.get().directBinaryEncoder(buffer, encoder);
+        genericWriter.write(record, encoder);
+        encoder.flush();
+        return buffer.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeSpecialized() throws IOException {
+        buffer.reset();
+        encoder = EncoderFactory.get().directBinaryEncoder(buffer, encoder);
+        specializedWriter.write(message, encoder);
+        encoder.flush();
+        return buffer.toByteArray();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public RawdataMessage decodeGeneric() throws IOException {
+        decoder = DecoderFactory.get().binaryDecoder(encoded, decoder);
+        GenericRecord record = genericReader.read(null, decoder);
+        Object orderingGroup = record.get("orderingGroup");
+        Map<String, byte[]> data = new LinkedHashMap<>();
+        for (Map.Entry<Utf8, ByteBuffer> entry : ((Map<Utf8, ByteBuffer>) record.get("data")).entrySet()) {
+            data.put(entry.getKey().toString(), AvroRawdataUtils.bytesOf(entry.getValue()));
+        }
+        return RawdataMessage.builder()
+                .ulid(ULID.fromBytes(((GenericData.Fixed) record.get("id")).bytes()))
+                .orderingGroup(orderingGroup == null ? null : orderingGroup.toString())
+                .sequenceNumber((Long) record.get("sequenceNumber"))
+                .position(record.get("position").toString())
+                .data(data)
+                .build();
+    }
+
+    @Benchmark
+    public RawdataMessage decodeSpecialized() throws IOException {
+        decoder = DecoderFactory.get().binaryDecoder(encoded, decoder);
+        return specializedReader.read(null, decoder);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(RawdataMessageCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,88 @@
+package io.descoped.rawdata.avro;
+
+import de.huxhorn.sulky.ulid.ULID;
+import io.descoped.rawdata.api.RawdataMessage;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class RawdataMessageDatumWriterTest {
+
+    static byte[] encodeSpecialized(RawdataMessage message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        new RawdataMessageDatumWriter().write(message, encoder);
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    static byte[] encodeGeneric(RawdataMessage message) throws IOException {
+        GenericRecord record = new GenericData.Record(AvroRawdataProducer.schema);
+        byte[] id = message.ulid() == null ? new byte[16] : message.ulid().toBytes();
+        record.put("id", new GenericData.Fixed(AvroRawdataProducer.schema.getField("id").schema(), id));
+        record.put("orderingGroup", message.orderingGroup());
+        record.put("sequenceNumber", message.sequenceNumber());
+        record.put("position", message.position());
+        Map<String, ByteBuffer> data = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : message.data().entrySet()) {
+            data.put(entry.getKey(), ByteBuffer.wrap(entry.getValue()));
+        }
+        record.put("data", data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        new GenericDatumWriter<GenericRecord>(AvroRawdataProducer.schema).write(record, encoder);
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void thatEncodingIsIdenticalToGenericEncoding() throws IOException {
+        RawdataMessage full = RawdataMessage.builder()
+                .ulid(new ULID().nextValue())
+                .orderingGroup("group-æøå")
+                .sequenceNumber(123456789L)
+                .position("position-1")
+                .put("payload1", "value-1".getBytes(StandardCharsets.UTF_8))
+                .put("payload2", new byte[300])
+                .build();
+        assertEquals(encodeSpecialized(full), encodeGeneric(full));
+
+        RawdataMessage minimal = RawdataMessage.builder().position("p").build();
+        assertEquals(encodeSpecialized(minimal), encodeGeneric(minimal));
+    }
+
+    @Test
+    public void thatEncodedMessageIsDecodedToEqualMessage() throws IOException {
+        ULID.Value ulid = new ULID().nextValue();
+        RawdataMessage message = RawdataMessage.builder()
+                .ulid(ulid)
+                .sequenceNumber(-1)
+                .position("a")
+                .put("payload1", new byte[]{1, 2, 3})
+                .put("payload2", new byte[0])
+                .build();
+        byte[] bytes = encodeSpecialized(message);
+        RawdataMessage decoded = new RawdataMessageDatumReader(null).read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+        assertEquals(decoded.ulid(), ulid);
+        assertNull(decoded.orderingGroup());
+        assertEquals(decoded.sequenceNumber(), -1);
+        assertEquals(decoded.position(), "a");
+        assertEquals(decoded.keys(), message.keys());
+        assertEquals(decoded.get("payload1"), new byte[]{1, 2, 3});
+        assertEquals(decoded.get("payload2"), new byte[0]);
+    }
+}
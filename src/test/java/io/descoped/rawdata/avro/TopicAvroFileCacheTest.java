@@ -0,0 +1,115 @@
+package io.descoped.rawdata.avro;
+
+import org.testng.annotations.Test;
+
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TopicAvroFileCacheTest {
+
+    /**
+     * Lists the current files, optionally blocking a listing after it has read the files until released.
+     */
+    static class BlockingRawdataUtils implements AvroRawdataUtils {
+        final AtomicReference<NavigableMap<Long, RawdataAvroFile>> files = new AtomicReference<>(new TreeMap<>());
+        final AtomicInteger listings = new AtomicInteger();
+        volatile CountDownLatch listingStarted = new CountDownLatch(0);
+        volatile CountDownLatch releaseListing = new CountDownLatch(0);
+
+        @Override
+        public NavigableMap<Long, RawdataAvroFile> getTopicBlobs(String topic) {
+            listings.incrementAndGet();
+            NavigableMap<Long, RawdataAvroFile> result = new TreeMap<>(files.get());
+            listingStarted.countDown();
+            try {
+                releaseListing.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return result;
+        }
+
+        @Override
+        public AvroFileMetadata newAvrofileMetadata() {
+            throw new UnsupportedOperationException();
+        }
+
+        void addFile(long timestamp) {
+            NavigableMap<Long, RawdataAvroFile> newFiles = new TreeMap<>(files.get());
+            newFiles.put(timestamp, null);
+            files.set(newFiles);
+        }
+    }
+
+    @Test
+    public void thatNotificationDuringListingIsNotLost() throws Exception {
+        BlockingRawdataUtils utils = new BlockingRawdataUtils();
+        TopicAvroFileCache cache = new TopicAvroFileCache(utils, "the-topic", 60, false, 0, 0);
+        assertTrue(cache.blobsByTimestamp().isEmpty());
+        assertTrue(cache.blobsByTimestamp().isEmpty());
+        assertEquals(utils.listings.get(), 1); // within min listing interval
+
+        // a notification starts a listing that reads the files before the next file arrives
+        utils.listingStarted = new CountDownLatch(1);
+        utils.releaseListing = new CountDownLatch(1);
+        cache.notifyNewFiles();
+        CompletableFuture<NavigableMap<Long, RawdataAvroFile>> staleListing = CompletableFuture.supplyAsync(cache::blobsByTimestamp);
+        assertTrue(utils.listingStarted.await(10, TimeUnit.SECONDS));
+
+        // the next file arrives and is notified while the listing is in progress
+        utils.addFile(1000);
+        cache.notifyNewFiles();
+        long notificationCount = cache.notificationCount();
+        CompletableFuture<NavigableMap<Long, RawdataAvroFile>> listingAfterNotification = CompletableFuture.supplyAsync(cache::blobsByTimestamp);
+        Thread.sleep(100);
+        assertFalse(listingAfterNotification.isDone()); // waits for listing in progress rather than serving the snapshot
+        utils.releaseListing.countDown();
+
+        assertTrue(staleListing.get(10, TimeUnit.SECONDS).isEmpty());
+        assertTrue(listingAfterNotification.get(10, TimeUnit.SECONDS).containsKey(1000L));
+        assertTrue(cache.blobsByTimestamp().containsKey(1000L));
+        assertEquals(utils.listings.get(), 3);
+        assertEquals(cache.notificationCount(), notificationCount);
+    }
+
+    @Test
+    public void thatRemovedCallbackIsNotRun() {
+        TopicAvroFileCache cache = new TopicAvroFileCache(new BlockingRawdataUtils(), "the-topic", 60, false, 0, 0);
+        AtomicInteger removedRuns = new AtomicInteger();
+        AtomicInteger keptRuns = new AtomicInteger();
+        Runnable removed = removedRuns::incrementAndGet;
+        cache.onNewFiles(cache.notificationCount(), removed);
+        cache.onNewFiles(cache.notificationCount(), keptRuns::incrementAndGet);
+        cache.removeNewFilesCallback(removed);
+        cache.notifyNewFiles();
+        assertEquals(removedRuns.get(), 0);
+        assertEquals(keptRuns.get(), 1);
+        assertTrue(cache.newFilesCallbacks.isEmpty());
+    }
+
+    @Test
+    public void thatIncrementalListingDoesNotModifyReturnedListing() {
+        BlockingRawdataUtils utils = new BlockingRawdataUtils();
+        utils.addFile(1000);
+        TopicAvroFileCache cache = new TopicAvroFileCache(utils, "the-topic", 0, true, 0, 600);
+        NavigableMap<Long, RawdataAvroFile> firstListing = cache.blobsByTimestamp();
+        assertEquals(firstListing.keySet(), Set.of(1000L));
+
+        utils.addFile(2000);
+        NavigableMap<Long, RawdataAvroFile> secondListing = cache.blobsByTimestamp();
+        assertEquals(secondListing.keySet(), Set.of(1000L, 2000L));
+        assertEquals(firstListing.keySet(), Set.of(1000L));
+        assertSame(cache.blobsByTimestamp(), secondListing); // no new files, no new listing
+    }
+}
@@ -0,0 +1,226 @@
+package io.descoped.rawdata.avro.cloudstorage;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import org.apache.avro.file.SeekableInput;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class GCSBlobCacheTest {
+
+    /**
+     * Storage that only supports downloadTo, writing blobs of 100 bytes where every byte is the blob generation.
+     */
+    static class DownloadingStorage {
+        final ConcurrentMap<BlobId, AtomicInteger> downloadsByBlobId = new ConcurrentHashMap<>();
+        volatile CountDownLatch downloadGate = new CountDownLatch(0);
+        volatile boolean failing = false;
+
+        final Storage storage = (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(), new Class[]{Storage.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("downloadTo")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            BlobId blobId = (BlobId) args[0];
+            downloadsByBlobId.computeIfAbsent(blobId, k -> new AtomicInteger()).incrementAndGet();
+            downloadGate.await(10, TimeUnit.SECONDS);
+            if (failing) {
+                throw new RuntimeException("Simulated download failure");
+            }
+            byte[] content = new byte[100];
+            java.util.Arrays.fill(content, (byte) (long) blobId.getGeneration());
+            Files.write((Path) args[1], content);
+            return null;
+        });
+
+        int downloads(BlobId blobId) {
+            AtomicInteger count = downloadsByBlobId.get(blobId);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    static Path createTempFolder() throws IOException {
+        return Files.createTempDirectory("blob-cache-test");
+    }
+
+    static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> walk = Files.walk(folder)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    static byte[] read(SeekableInput input) throws IOException {
+        byte[] buf = new byte[(int) input.length()];
+        int n = 0;
+        while (n < buf.length) {
+            n += input.read(buf, n, buf.length - n);
+        }
+        return buf;
+    }
+
+    @Test
+    public void thatLeastRecentlyUsedBlobIsEvicted() throws IOException {
+        Path folder = createTempFolder();
+        try {
+            DownloadingStorage storage = new DownloadingStorage();
+            GCSBlobCache cache = new GCSBlobCache(storage.storage, folder, 250);
+            BlobId a = BlobId.of("bucket", "a", 1L);
+            BlobId b = BlobId.of("bucket", "b", 1L);
+            BlobId c = BlobId.of("bucket", "c", 1L);
+            cache.seekableInput(a, 100).close();
+            cache.seekableInput(b, 100).close();
+            cache.seekableInput(a, 100).close(); // a is now more recently used than b
+            cache.seekableInput(c, 100).close(); // evicts b
+            assertEquals(cache.totalBytes, 200);
+            assertTrue(Files.exists(folder.resolve(GCSBlobCache.filenameOf(a))));
+            assertFalse(Files.exists(folder.resolve(GCSBlobCache.filenameOf(b))));
+            assertTrue(Files.exists(folder.resolve(GCSBlobCache.filenameOf(c))));
+
+            cache.seekableInput(a, 100).close();
+            cache.seekableInput(b, 100).close();
+            assertEquals(storage.downloads(a), 1);
+            assertEquals(storage.downloads(b), 2);
+            assertEquals(storage.downloads(c), 1);
+
+            assertNull(cache.seekableInput(BlobId.of("bucket", "large", 1L), 251));
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    public void thatOpenInputPinsBlobUntilClosed() throws IOException {
+        Path folder = createTempFolder();
+        try {
+            DownloadingStorage storage = new DownloadingStorage();
+            GCSBlobCache cache = new GCSBlobCache(storage.storage, folder, 150);
+            BlobId a = BlobId.of("bucket", "a", 1L);
+            BlobId b = BlobId.of("bucket", "b", 1L);
+            SeekableInput inputOfA = cache.seekableInput(a, 100);
+            SeekableInput inputOfB = cache.seekableInput(b, 100); // over budget, but both are pinned
+            assertEquals(cache.totalBytes, 200);
+            inputOfA.close(); // a is least recently used and no longer pinned
+            assertFalse(Files.exists(folder.resolve(GCSBlobCache.filenameOf(a))));
+            assertTrue(Files.exists(folder.resolve(GCSBlobCache.filenameOf(b))));
+            assertEquals(read(inputOfB).length, 100);
+            inputOfB.close();
+            assertEquals(cache.totalBytes, 100);
+
+            SeekableInput inputOfB2 = cache.seekableInput(b, 100);
+            SeekableInput inputOfB3 = cache.seekableInput(b, 100);
+            inputOfB2.close();
+            inputOfB2.close(); // closing twice must not unpin twice
+            cache.seekableInput(a, 100).close(); // b is still pinned by the third input, so a is evicted on close
+            assertTrue(Files.exists(folder.resolve(GCSBlobCache.filenameOf(b))));
+            assertFalse(Files.exists(folder.resolve(GCSBlobCache.filenameOf(a))));
+            inputOfB3.close();
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    public void thatConcurrentRequestsShareOneDownload() throws Exception {
+        Path folder = createTempFolder();
+        try {
+            DownloadingStorage storage = new DownloadingStorage();
+            storage.downloadGate = new CountDownLatch(1);
+            GCSBlobCache cache = new GCSBlobCache(storage.storage, folder, 1000);
+            BlobId a = BlobId.of("bucket", "a", 1L);
+            CompletableFuture<SeekableInput> first = CompletableFuture.supplyAsync(() -> cache.seekableInput(a, 100));
+            CompletableFuture<SeekableInput> second = CompletableFuture.supplyAsync(() -> cache.seekableInput(a, 100));
+            while (storage.downloads(a) == 0 || cache.downloadByFilename.isEmpty()) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            storage.downloadGate.countDown();
+            SeekableInput firstInput = first.get(10, TimeUnit.SECONDS);
+            SeekableInput secondInput = second.get(10, TimeUnit.SECONDS);
+            assertNotNull(firstInput);
+            assertNotNull(secondInput);
+            assertEquals(storage.downloads(a), 1);
+            firstInput.close();
+            secondInput.close();
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    public void thatFailedSharedDownloadFallsBackToDirectRead() throws Exception {
+        Path folder = createTempFolder();
+        try {
+            DownloadingStorage storage = new DownloadingStorage();
+            storage.downloadGate = new CountDownLatch(1);
+            storage.failing = true;
+            GCSBlobCache cache = new GCSBlobCache(storage.storage, folder, 1000);
+            BlobId a = BlobId.of("bucket", "a", 1L);
+            CompletableFuture<SeekableInput> first = CompletableFuture.supplyAsync(() -> cache.seekableInput(a, 100));
+            while (storage.downloads(a) == 0) {
+                Thread.sleep(10);
+            }
+            CompletableFuture<SeekableInput> second = CompletableFuture.supplyAsync(() -> cache.seekableInput(a, 100));
+            Thread.sleep(50);
+            storage.downloadGate.countDown();
+            assertNull(first.get(10, TimeUnit.SECONDS)); // the downloading thread also reads directly
+            assertNull(second.get(10, TimeUnit.SECONDS));
+            assertEquals(storage.downloads(a), 1);
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    public void thatRewrittenBlobIsCachedByGeneration() throws IOException {
+        Path folder = createTempFolder();
+        try {
+            DownloadingStorage storage = new DownloadingStorage();
+            GCSBlobCache cache = new GCSBlobCache(storage.storage, folder, 1000);
+            try (SeekableInput input = cache.seekableInput(BlobId.of("bucket", "a", 1L), 100)) {
+                assertEquals(read(input)[0], 1);
+            }
+            try (SeekableInput input = cache.seekableInput(BlobId.of("bucket", "a", 2L), 100)) {
+                assertEquals(read(input)[0], 2);
+            }
+            assertEquals(storage.downloads(BlobId.of("bucket", "a", 2L)), 1);
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    public void thatCachedFilesAreReusedAndPartialDownloadsDeletedOnStartup() throws IOException {
+        Path folder = createTempFolder();
+        try {
+            DownloadingStorage storage = new DownloadingStorage();
+            BlobId a = BlobId.of("bucket", "a", 1L);
+            new GCSBlobCache(storage.storage, folder, 1000).seekableInput(a, 100).close();
+            Path partial = Files.createTempFile(folder, "", ".download");
+
+            GCSBlobCache cache = new GCSBlobCache(storage.storage, folder, 1000);
+            assertFalse(Files.exists(partial));
+            assertEquals(cache.totalBytes, 100);
+            cache.seekableInput(a, 100).close();
+            assertEquals(storage.downloads(a), 1);
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+}
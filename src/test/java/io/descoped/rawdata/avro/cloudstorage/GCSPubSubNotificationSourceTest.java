@@ -0,0 +1,251 @@
+package io.descoped.rawdata.avro.cloudstorage;
+
+import com.google.api.core.AbstractApiService;
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.SubscriptionAdminClient;
+import com.google.cloud.pubsub.v1.SubscriptionAdminSettings;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.cloud.pubsub.v1.TopicAdminSettings;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PushConfig;
+import com.google.pubsub.v1.TopicName;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GCSPubSubNotificationSourceTest {
+
+    static class FakeSubscriber extends AbstractApiService {
+        @Override
+        protected void doStart() {
+            notifyStarted();
+        }
+
+        @Override
+        protected void doStop() {
+            notifyStopped();
+        }
+
+        void fail() {
+            notifyFailed(new RuntimeException("connection lost"));
+        }
+    }
+
+    static class CountingAckReplyConsumer implements AckReplyConsumer {
+        final AtomicInteger acks = new AtomicInteger();
+        final AtomicInteger nacks = new AtomicInteger();
+
+        @Override
+        public void ack() {
+            acks.incrementAndGet();
+        }
+
+        @Override
+        public void nack() {
+            nacks.incrementAndGet();
+        }
+    }
+
+    static PubsubMessage notification(String eventType, String bucketId, String objectId) {
+        return PubsubMessage.newBuilder()
+                .putAttributes("eventType", eventType)
+                .putAttributes("bucketId", bucketId)
+                .putAttributes("objectId", objectId)
+                .build();
+    }
+
+    @Test
+    public void thatOnlyFinalizedAvroFilesOfBucketNotifyTheirTopic() {
+        List<FakeSubscriber> subscribers = new CopyOnWriteArrayList<>();
+        GCSPubSubNotificationSource source = new GCSPubSubNotificationSource("the-bucket", "projects/p/subscriptions/s", null, receiver -> {
+            FakeSubscriber subscriber = new FakeSubscriber();
+            subscribers.add(subscriber);
+            return subscriber;
+        }, 10, 1000);
+        try {
+            AtomicInteger topic1Notifications = new AtomicInteger();
+            AtomicInteger topic2Notifications = new AtomicInteger();
+            source.watch("topic-1", topic1Notifications::incrementAndGet);
+            source.watch("path/to/topic-2", topic2Notifications::incrementAndGet);
+            CountingAckReplyConsumer consumer = new CountingAckReplyConsumer();
+
+            String filename = "2021-04-21T05:47:10.694Z_100_343_1.avro";
+            source.receiveMessage(notification("OBJECT_FINALIZE", "the-bucket", "topic-1/" + filename), consumer);
+            source.receiveMessage(notification("OBJECT_FINALIZE", "the-bucket", "path/to/topic-2/" + filename), consumer);
+            source.receiveMessage(notification("OBJECT_DELETE", "the-bucket", "topic-1/" + filename), consumer);
+            source.receiveMessage(notification("OBJECT_FINALIZE", "other-bucket", "topic-1/" + filename), consumer);
+            source.receiveMessage(notification("OBJECT_FINALIZE", "the-bucket", "topic-1/metadata.json"), consumer);
+            source.receiveMessage(notification("OBJECT_FINALIZE", "the-bucket", "topic-3/" + filename), consumer);
+            source.receiveMessage(PubsubMessage.newBuilder().build(), consumer);
+
+            assertEquals(topic1Notifications.get(), 1);
+            assertEquals(topic2Notifications.get(), 1);
+            assertEquals(consumer.acks.get(), 7); // every message is acked, also when not relevant
+            assertEquals(consumer.nacks.get(), 0);
+
+            source.unwatch("topic-1");
+            source.receiveMessage(notification("OBJECT_FINALIZE", "the-bucket", "topic-1/" + filename), consumer);
+            assertEquals(topic1Notifications.get(), 1);
+            assertEquals(consumer.acks.get(), 8);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void thatMessageIsNackedWhenListenerFails() {
+        GCSPubSubNotificationSource source = new GCSPubSubNotificationSource("the-bucket", "projects/p/subscriptions/s", null, receiver -> new FakeSubscriber(), 10, 1000);
+        try {
+            source.watch("topic-1", () -> {
+                throw new RuntimeException("listener failed");
+            });
+            CountingAckReplyConsumer consumer = new CountingAckReplyConsumer();
+            source.receiveMessage(notification("OBJECT_FINALIZE", "the-bucket", "topic-1/2021-04-21T05:47:10.694Z_100_343_1.avro"), consumer);
+            assertEquals(consumer.acks.get(), 0);
+            assertEquals(consumer.nacks.get(), 1);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void thatRestartDelayIsBounded() throws InterruptedException {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        AtomicInteger starts = new AtomicInteger();
+        GCSPubSubNotificationSource source = new GCSPubSubNotificationSource("the-bucket", "projects/p/subscriptions/s", null, receiver -> new FakeSubscriber() {
+            @Override
+            protected void doStart() {
+                starts.incrementAndGet();
+                if (failing.get()) {
+                    notifyFailed(new RuntimeException("unavailable"));
+                } else {
+                    notifyStarted();
+                }
+            }
+        }, 10, 40);
+        try {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (starts.get() < 6 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertFalse(source.isReliable());
+            assertEquals(source.restartDelayMillis.get(), 40); // 10, 20, 40, 40, ...
+            failing.set(false);
+            while (!source.isReliable() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(source.isReliable());
+            assertEquals(source.restartDelayMillis.get(), 10);
+            assertEquals(source.consecutiveFailures.get(), 0);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void thatFailedSubscriberIsRestarted() throws InterruptedException {
+        List<FakeSubscriber> subscribers = new CopyOnWriteArrayList<>();
+        GCSPubSubNotificationSource source = new GCSPubSubNotificationSource("the-bucket", "projects/p/subscriptions/s", null, receiver -> {
+            FakeSubscriber subscriber = new FakeSubscriber();
+            subscribers.add(subscriber);
+            return subscriber;
+        }, 10, 1000);
+        try {
+            assertTrue(source.isReliable());
+            subscribers.get(0).fail();
+            assertFalse(source.isReliable());
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (!source.isReliable() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(source.isReliable());
+            assertEquals(subscribers.size(), 2);
+        } finally {
+            source.close();
+        }
+        assertFalse(source.isReliable());
+        assertFalse(subscribers.get(1).isRunning());
+    }
+
+    /**
+     * Requires a Pub/Sub emulator, e.g. started with "gcloud beta emulators pubsub start", and PUBSUB_EMULATOR_HOST
+     * set to its host and port.
+     */
+    @Test
+    public void thatNotificationsFromEmulatorNotifyTheirTopic() throws Exception {
+        String emulatorHost = System.getenv("PUBSUB_EMULATOR_HOST");
+        if (emulatorHost == null) {
+            throw new SkipException("PUBSUB_EMULATOR_HOST is not set");
+        }
+        String suffix = UUID.randomUUID().toString();
+        TopicName topicName = TopicName.of("rawdata-test", "bucket-notifications-" + suffix);
+        ProjectSubscriptionName subscriptionName = ProjectSubscriptionName.of("rawdata-test", "rawdata-client-" + suffix);
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build();
+        try {
+            TransportChannelProvider channelProvider = FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel));
+            CredentialsProvider credentialsProvider = NoCredentialsProvider.create();
+            try (TopicAdminClient topicAdmin = TopicAdminClient.create(TopicAdminSettings.newBuilder()
+                    .setTransportChannelProvider(channelProvider).setCredentialsProvider(credentialsProvider).build());
+                 SubscriptionAdminClient subscriptionAdmin = SubscriptionAdminClient.create(SubscriptionAdminSettings.newBuilder()
+                         .setTransportChannelProvider(channelProvider).setCredentialsProvider(credentialsProvider).build())) {
+                topicAdmin.createTopic(topicName);
+                subscriptionAdmin.createSubscription(subscriptionName, topicName, PushConfig.getDefaultInstance(), 10);
+                try {
+                    GCSPubSubNotificationSource source = new GCSPubSubNotificationSource("the-bucket", subscriptionName.toString(), null, emulatorHost);
+                    try {
+                        AtomicInteger topic1Notifications = new AtomicInteger();
+                        CountDownLatch notified = new CountDownLatch(2);
+                        source.watch("topic-1", () -> {
+                            topic1Notifications.incrementAndGet();
+                            notified.countDown();
+                        });
+                        source.watch("topic-2", notified::countDown);
+
+                        String filename = "2021-04-21T05:47:10.694Z_100_343_1.avro";
+                        Publisher publisher = Publisher.newBuilder(topicName)
+                                .setChannelProvider(channelProvider).setCredentialsProvider(credentialsProvider).build();
+                        try {
+                            publisher.publish(notification("OBJECT_FINALIZE", "other-bucket", "topic-1/" + filename)).get(10, TimeUnit.SECONDS);
+                            publisher.publish(notification("OBJECT_FINALIZE", "the-bucket", "topic-1/" + filename)).get(10, TimeUnit.SECONDS);
+                            publisher.publish(notification("OBJECT_FINALIZE", "the-bucket", "topic-2/" + filename)).get(10, TimeUnit.SECONDS);
+                        } finally {
+                            publisher.shutdown();
+                            publisher.awaitTermination(10, TimeUnit.SECONDS);
+                        }
+                        assertTrue(notified.await(30, TimeUnit.SECONDS));
+                        assertTrue(source.isReliable());
+                        Thread.sleep(500); // the notification of the other bucket may be delivered last
+                        assertEquals(topic1Notifications.get(), 1);
+                    } finally {
+                        source.close();
+                    }
+                } finally {
+                    subscriptionAdmin.deleteSubscription(subscriptionName);
+                    topicAdmin.deleteTopic(topicName);
+                }
+            }
+        } finally {
+            channel.shutdownNow();
+        }
+    }
+}
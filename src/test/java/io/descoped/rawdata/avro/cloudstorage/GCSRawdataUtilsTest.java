@@ -11,4 +11,11 @@ public class GCSRawdataUtilsTest {
         String filename = GCSRawdataUtils.filename(BlobId.of("any", "abc/123/something/20210421054707/20210421054707/2021-04-21T05:47:10.694Z_100_343_1.avro"));
         Assert.assertEquals(filename, "2021-04-21T05:47:10.694Z_100_343_1.avro");
     }
+
+    @Test
+    public void testBlockIndexBlobId() {
+        BlobId blockIndexBlobId = GCSRawdataUtils.blockIndexBlobIdOf(BlobId.of("any", "abc/123/2021-04-21T05:47:10.694Z_100_343_1.avro"));
+        Assert.assertEquals(blockIndexBlobId, BlobId.of("any", "abc/123/index/2021-04-21T05:47:10.694Z_100_343_1.avro"));
+        Assert.assertTrue(GCSRawdataUtils.topicAndBlockIndexFilenamePattern.matcher(blockIndexBlobId.getName()).matches());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,246 @@
+package io.descoped.rawdata.avro.cloudstorage;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.RestorableState;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class GCSSeekableInputTest {
+
+    static class InMemoryReadChannel implements ReadChannel {
+        final byte[] data;
+        int position = 0;
+        int seeks = 0;
+        boolean open = true;
+        long delayMillis = 0;
+        boolean failing = false;
+
+        InMemoryReadChannel(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public void seek(long position) {
+            this.position = (int) position;
+            seeks++;
+        }
+
+        @Override
+        public void setChunkSize(int chunkSize) {
+        }
+
+        @Override
+        public RestorableState<ReadChannel> capture() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (failing) {
+                throw new IOException("Simulated read failure");
+            }
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (position >= data.length) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), data.length - position);
+            dst.put(data, position, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    static byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void thatReadsWithinChunkDoNotTouchChannel() throws IOException {
+        InMemoryReadChannel channel = new InMemoryReadChannel(data(1000));
+        GCSSeekableInput input = new GCSSeekableInput(channel, 1000, 100);
+        byte[] buf = new byte[10];
+        input.seek(200);
+        assertEquals(input.read(buf, 0, 10), 10);
+        assertEquals(buf[0], (byte) 200);
+        input.seek(250);
+        assertEquals(input.read(buf, 0, 10), 10);
+        assertEquals(buf[0], (byte) 250);
+        input.seek(205);
+        assertEquals(input.read(buf, 0, 10), 10);
+        assertEquals(buf[0], (byte) 205);
+        assertEquals(channel.seeks, 1);
+        assertEquals(input.tell(), 215);
+    }
+
+    @Test
+    public void thatSequentialChunksDoNotSeekChannel() throws IOException {
+        InMemoryReadChannel channel = new InMemoryReadChannel(data(1000));
+        GCSSeekableInput input = new GCSSeekableInput(channel, 1000, 64);
+        byte[] buf = new byte[1000];
+        int offset = 0;
+        int n;
+        while ((n = input.read(buf, offset, Math.min(7, buf.length - offset))) > 0) {
+            offset += n;
+        }
+        assertEquals(offset, 1000);
+        assertEquals(buf, data(1000));
+        assertEquals(channel.seeks, 0);
+        assertEquals(input.read(buf, 0, 1), -1);
+    }
+
+    @Test
+    public void thatLargeReadsBypassChunk() throws IOException {
+        InMemoryReadChannel channel = new InMemoryReadChannel(data(1000));
+        GCSSeekableInput input = new GCSSeekableInput(channel, 1000, 100);
+        byte[] buf = new byte[300];
+        input.seek(500);
+        int n = input.read(buf, 0, 300);
+        assertEquals(buf[0], (byte) 500);
+        assertEquals(input.tell(), 500 + n);
+    }
+
+    @Test
+    public void thatSlowReadIsHedgedAndFastestChannelIsKept() throws IOException {
+        List<InMemoryReadChannel> channels = new CopyOnWriteArrayList<>();
+        Supplier<ReadChannel> readChannels = () -> {
+            InMemoryReadChannel channel = new InMemoryReadChannel(data(1000));
+            channel.delayMillis = channels.isEmpty() ? 10_000 : 0; // first channel stalls
+            channels.add(channel);
+            return channel;
+        };
+        GCSSeekableInput input = new GCSSeekableInput(readChannels, new GCSHedgedReads(95, 20, 4), 1000, 100);
+        byte[] buf = new byte[10];
+        long start = System.currentTimeMillis();
+        input.seek(200);
+        assertEquals(input.read(buf, 0, 10), 10);
+        assertEquals(buf[0], (byte) 200);
+        assertTrue(System.currentTimeMillis() - start < 5_000);
+        assertEquals(channels.size(), 2);
+        assertFalse(channels.get(0).isOpen());
+        input.seek(300); // sequential continuation on the hedging channel
+        assertEquals(input.read(buf, 0, 10), 10);
+        assertEquals(buf[0], (byte) 300);
+        assertEquals(channels.size(), 2);
+        assertEquals(channels.get(1).seeks, 1);
+    }
+
+    @Test
+    public void thatFailedReadIsRetriedOnNewChannel() throws IOException {
+        List<InMemoryReadChannel> channels = new CopyOnWriteArrayList<>();
+        Supplier<ReadChannel> readChannels = () -> {
+            InMemoryReadChannel channel = new InMemoryReadChannel(data(1000));
+            channel.failing = channels.isEmpty();
+            channels.add(channel);
+            return channel;
+        };
+        GCSSeekableInput input = new GCSSeekableInput(readChannels, new GCSHedgedReads(95, 1_000, 4), 1000, 100);
+        byte[] buf = new byte[10];
+        input.seek(500);
+        assertEquals(input.read(buf, 0, 10), 10);
+        assertEquals(buf[0], (byte) 500);
+        assertEquals(channels.size(), 2);
+    }
+
+    @Test
+    public void thatChannelOfFailedRetryIsClosed() throws IOException {
+        List<InMemoryReadChannel> channels = new CopyOnWriteArrayList<>();
+        Supplier<ReadChannel> readChannels = () -> {
+            InMemoryReadChannel channel = new InMemoryReadChannel(data(1000));
+            channel.failing = true;
+            channels.add(channel);
+            return channel;
+        };
+        GCSHedgedReads hedgedReads = new GCSHedgedReads(95, 1_000, 4);
+        GCSSeekableInput input = new GCSSeekableInput(readChannels, hedgedReads, 1000, 100);
+        input.seek(500);
+        try {
+            input.read(new byte[10], 0, 10);
+            fail("Expected read to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(channels.size(), 2);
+        assertFalse(channels.get(1).isOpen());
+        hedgedReads.close();
+        assertTrue(hedgedReads.executor.isShutdown());
+    }
+
+    @Test
+    public void thatFailedReadIsNotRetriedWhileAtHedgeLimit() {
+        List<InMemoryReadChannel> channels = new CopyOnWriteArrayList<>();
+        Supplier<ReadChannel> readChannels = () -> {
+            InMemoryReadChannel channel = new InMemoryReadChannel(data(1000));
+            channel.failing = channels.isEmpty();
+            channels.add(channel);
+            return channel;
+        };
+        GCSSeekableInput input = new GCSSeekableInput(readChannels, new GCSHedgedReads(95, 1_000, 0), 1000, 100);
+        try {
+            input.read(new byte[10], 0, 10);
+            fail("Expected read to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(channels.size(), 1);
+    }
+
+    @Test
+    public void thatLargeHedgedReadIsServedThroughChunk() throws IOException {
+        List<InMemoryReadChannel> channels = new CopyOnWriteArrayList<>();
+        Supplier<ReadChannel> readChannels = () -> {
+            InMemoryReadChannel channel = new InMemoryReadChannel(data(1000));
+            channel.delayMillis = channels.isEmpty() ? 10_000 : 0; // first channel stalls
+            channels.add(channel);
+            return channel;
+        };
+        GCSSeekableInput input = new GCSSeekableInput(readChannels, new GCSHedgedReads(95, 20, 4), 1000, 100);
+        byte[] buf = new byte[300];
+        input.seek(500);
+        int n = input.read(buf, 0, 300);
+        assertEquals(n, 100);
+        for (int i = 0; i < n; i++) {
+            assertEquals(buf[i], (byte) (500 + i));
+        }
+        assertEquals(channels.size(), 2);
+    }
+
+    @Test
+    public void thatHedgeDelayIsPercentileOfObservedLatencies() {
+        GCSHedgedReads hedgedReads = new GCSHedgedReads(95, 10, 4);
+        assertEquals(hedgedReads.hedgeDelayMillis(), 10); // too few samples
+        for (int i = 1; i <= 100; i++) {
+            hedgedReads.recordLatency(i);
+        }
+        assertEquals(hedgedReads.hedgeDelayMillis(), 95);
+    }
+}
@@ -8,7 +8,16 @@ import io.descoped.rawdata.api.RawdataMessage;
 import io.descoped.rawdata.api.RawdataMetadataClient;
 import io.descoped.rawdata.api.RawdataNoSuchPositionException;
 import io.descoped.rawdata.api.RawdataProducer;
+import io.descoped.rawdata.avro.AvroRawdataClient;
+import io.descoped.rawdata.avro.AvroRawdataClientSettings;
+import io.descoped.rawdata.avro.AvroFileMetadata;
+import io.descoped.rawdata.avro.AvroRawdataUtils;
+import io.descoped.rawdata.avro.RawdataAvroFile;
+import io.descoped.rawdata.avro.api.ExtendedRawdataClient;
 import io.descoped.service.provider.api.ProviderConfigurator;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -21,30 +30,47 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class FilesystemAvroRawdataClientTck {
 
+    Map<String, String> configuration;
     RawdataClient client;
 
     @BeforeMethod
     public void createRawdataClient() throws IOException {
-        Map<String, String> configuration = new LinkedHashMap<>();
+        configuration = new LinkedHashMap<>();
         configuration.put("local-temp-folder", "target/_tmp_avro_");
         configuration.put("avro-file.max.seconds", "2");
         configuration.put("avro-file.max.bytes", Long.toString(2 * 1024)); // 2 KiB
         configuration.put("avro-file.sync.interval", Long.toString(200));
         configuration.put("listing.min-interval-seconds", "0");
         configuration.put("filesystem.storage-folder", "target/rawdata-store");
+        configuration.put("filesystem.watch", "true");
 
         {
             Path folder = Paths.get(configuration.get("local-temp-folder"));
@@ -136,6 +162,83 @@ public class FilesystemAvroRawdataClientTck {
         }
     }
 
+    @Test
+    public void thatAllFieldsOfMessageSurvivesStreamWithLazyDecoding() throws Exception {
+        ULID ulidGenerator = new ULID();
+        long timestamp = System.currentTimeMillis();
+        ULID.Value ulid = ulidGenerator.nextValue(timestamp + 1);
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            producer.publish(
+                    RawdataMessage.builder().ulid(ulidGenerator.nextValue(timestamp)).position("a").put("payload1", new byte[3]).build(),
+                    RawdataMessage.builder().ulid(ulid).orderingGroup("og1").sequenceNumber(7).position("b").put("payload1", "ABC".getBytes(StandardCharsets.UTF_8)).put("payload2", new byte[7]).build(),
+                    RawdataMessage.builder().ulid(ulidGenerator.nextValue(timestamp + 2)).sequenceNumber(-3).position("c").build()
+            );
+        }
+
+        Map<String, String> lazyConfiguration = new LinkedHashMap<>(configuration);
+        lazyConfiguration.put("consumer.lazy-decoding", "true");
+        try (RawdataClient lazyClient = ProviderConfigurator.configure(lazyConfiguration, "filesystem", RawdataClientInitializer.class);
+             RawdataConsumer consumer = lazyClient.consumer("the-topic", ulid, true)) {
+            {
+                RawdataMessage message = consumer.receive(1, TimeUnit.SECONDS);
+                assertEquals(message.ulid(), ulid);
+                assertEquals(message.timestamp(), ulid.timestamp());
+                assertEquals(message.orderingGroup(), "og1");
+                assertEquals(message.sequenceNumber(), 7);
+                assertEquals(message.position(), "b");
+                assertEquals(message.keys().size(), 2);
+                assertEquals(message.get("payload1"), "ABC".getBytes(StandardCharsets.UTF_8));
+                assertEquals(message.get("payload2"), new byte[7]);
+                assertNull(message.get("payload3"));
+                assertEquals(message.data().get("payload1"), "ABC".getBytes(StandardCharsets.UTF_8));
+            }
+            {
+                RawdataMessage message = consumer.receive(1, TimeUnit.SECONDS);
+                assertNull(message.orderingGroup());
+                assertEquals(message.sequenceNumber(), -3);
+                assertEquals(message.position(), "c");
+                assertEquals(message.keys().size(), 0);
+            }
+            assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+
+            try (RawdataConsumer first = lazyClient.consumer("the-topic", ulid, true);
+                 RawdataConsumer second = lazyClient.consumer("the-topic", ulid, true)) {
+                RawdataMessage message = first.receive(1, TimeUnit.SECONDS);
+                RawdataMessage sameMessage = second.receive(1, TimeUnit.SECONDS);
+                assertEquals(message, sameMessage);
+                assertEquals(message.hashCode(), sameMessage.hashCode());
+                assertNotEquals(first.receive(1, TimeUnit.SECONDS), message);
+            }
+        }
+    }
+
+    @Test
+    public void thatConsumerWithKeyProjectionOnlyReceivesThoseKeys() throws Exception {
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            producer.publish(
+                    RawdataMessage.builder().position("a").put("payload1", new byte[3]).put("payload2", new byte[5]).put("payload3", new byte[7]).build(),
+                    RawdataMessage.builder().position("b").put("payload2", new byte[11]).build()
+            );
+        }
+        for (String lazyDecoding : List.of("false", "true")) {
+            Map<String, String> projectionConfiguration = new LinkedHashMap<>(configuration);
+            projectionConfiguration.put("consumer.lazy-decoding", lazyDecoding);
+            try (AvroRawdataClient projectionClient = (AvroRawdataClient) ProviderConfigurator.configure(projectionConfiguration, "filesystem", RawdataClientInitializer.class);
+                 RawdataConsumer consumer = projectionClient.consumer("the-topic", null, Set.of("payload1", "payload3"))) {
+                RawdataMessage a = consumer.receive(1, TimeUnit.SECONDS);
+                assertEquals(a.position(), "a");
+                assertEquals(a.keys(), Set.of("payload1", "payload3"));
+                assertEquals(a.get("payload1"), new byte[3]);
+                assertNull(a.get("payload2"));
+                assertEquals(a.data().get("payload3"), new byte[7]);
+                RawdataMessage b = consumer.receive(1, TimeUnit.SECONDS);
+                assertEquals(b.position(), "b");
+                assertEquals(b.keys().size(), 0);
+                assertNull(b.get("payload2"));
+            }
+        }
+    }
+
     @Test
     public void thatSingleMessageCanBeProducedAndConsumerSynchronously() throws Exception {
         try (RawdataProducer producer = client.producer("a/b/c")) {
@@ -217,6 +320,49 @@ public class FilesystemAvroRawdataClientTck {
         });
     }
 
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "'scan.parallelism' must be at least 1, was 0")
+    public void thatSettingOutOfRangeFailsWhenParsed() {
+        Map<String, String> invalidConfiguration = new LinkedHashMap<>(configuration);
+        invalidConfiguration.put("scan.parallelism", "0");
+        AvroRawdataClientSettings.of(invalidConfiguration, "");
+    }
+
+    @Test
+    public void thatMessagesCanBeReceivedInBatches() throws Exception {
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 50; i++) {
+                producer.publish(RawdataMessage.builder().position("a" + i).put("payload", new byte[40]).build());
+            }
+        }
+        try (ExtendedRawdataClient.Consumer consumer = ((ExtendedRawdataClient) client).consumer("the-topic")) {
+            List<String> positions = new ArrayList<>();
+            List<RawdataMessage> batch;
+            while (!(batch = consumer.receiveBatch(8, 1024, 1, TimeUnit.SECONDS)).isEmpty()) {
+                assertTrue(batch.size() <= 8);
+                for (RawdataMessage message : batch) {
+                    positions.add(message.position());
+                }
+            }
+            assertEquals(positions.size(), 50);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(positions.get(i), "a" + i);
+            }
+        }
+        try (ExtendedRawdataClient.Consumer consumer = ((ExtendedRawdataClient) client).consumer("the-topic")) {
+            assertEquals(consumer.receiveBatch(100, 100, 1, TimeUnit.SECONDS).size(), 2); // a third would exceed max bytes
+            List<RawdataMessage> oversized = consumer.receiveBatch(100, 10, 1, TimeUnit.SECONDS);
+            assertEquals(oversized.size(), 1); // first message is returned even if it exceeds max bytes
+            assertEquals(oversized.get(0).position(), "a2");
+            assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "a3");
+        }
+        Map<String, String> lazyConfiguration = new LinkedHashMap<>(configuration);
+        lazyConfiguration.put("consumer.lazy-decoding", "true");
+        try (AvroRawdataClient lazyClient = (AvroRawdataClient) ProviderConfigurator.configure(lazyConfiguration, "filesystem", RawdataClientInitializer.class);
+             ExtendedRawdataClient.Consumer consumer = lazyClient.consumer("the-topic")) {
+            assertEquals(consumer.receiveBatch(100, 100, 1, TimeUnit.SECONDS).size(), 2); // limited by encoded lengths
+        }
+    }
+
     @Test
     public void thatMessagesCanBeConsumedByMultipleConsumers() throws Exception {
         try (RawdataProducer producer = client.producer("the-topic")) {
@@ -294,6 +440,306 @@ public class FilesystemAvroRawdataClientTck {
         }
     }
 
+    @Test
+    public void thatSeekWithinFileOfManyBlocksStartsAtRightMessage() throws Exception {
+        ULID ulid = new ULID();
+        long timestamp = System.currentTimeMillis() - 1000;
+        List<ULID.Value> ids = new ArrayList<>();
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 20; i++) {
+                ULID.Value id = ulid.nextValue(timestamp + 10 * i);
+                ids.add(id);
+                producer.publish(RawdataMessage.builder().ulid(id).position("a" + i).put("payload", new byte[50]).build());
+            }
+        }
+        for (int i = 19; i >= 0; i--) {
+            try (RawdataConsumer consumer = client.consumer("the-topic", ids.get(i), true)) {
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "a" + i);
+            }
+            try (RawdataConsumer consumer = client.consumer("the-topic")) {
+                consumer.seek(timestamp + 10 * i - 5);
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "a" + i);
+            }
+        }
+    }
+
+    @Test
+    public void thatBlocksDecodedInParallelAreReceivedInOrder() throws Exception {
+        ULID ulid = new ULID();
+        long timestamp = System.currentTimeMillis() - 1000;
+        List<ULID.Value> ids = new ArrayList<>();
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 60; i++) {
+                ULID.Value id = ulid.nextValue(timestamp + i);
+                ids.add(id);
+                producer.publish(RawdataMessage.builder().ulid(id).position("a" + i).put("payload", new byte[50]).build());
+            }
+        }
+        Map<String, String> parallelConfiguration = new LinkedHashMap<>(configuration);
+        parallelConfiguration.put("consumer.decode.parallelism", "3");
+        try (RawdataClient parallelClient = ProviderConfigurator.configure(parallelConfiguration, "filesystem", RawdataClientInitializer.class)) {
+            try (RawdataConsumer consumer = parallelClient.consumer("the-topic")) {
+                for (int i = 0; i < 60; i++) {
+                    RawdataMessage message = consumer.receive(1, TimeUnit.SECONDS);
+                    assertEquals(message.ulid(), ids.get(i));
+                    assertEquals(message.position(), "a" + i);
+                    assertEquals(message.get("payload"), new byte[50]);
+                }
+                assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+            }
+            try (RawdataConsumer consumer = parallelClient.consumer("the-topic", ids.get(25), false)) {
+                for (int i = 26; i < 60; i++) {
+                    assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "a" + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void thatTimeRangeScanReturnsMessagesOfRangeOrderedAndUnordered() throws Exception {
+        ULID ulid = new ULID();
+        long timestamp = System.currentTimeMillis() - 1000;
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 60; i++) {
+                producer.publish(RawdataMessage.builder().ulid(ulid.nextValue(timestamp + i)).position("a" + i).put("payload", new byte[50]).build());
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 10; i < 50; i++) {
+            expected.add("a" + i);
+        }
+        AvroRawdataClient avroClient = (AvroRawdataClient) client;
+        try (Stream<RawdataMessage> stream = avroClient.scan("the-topic", timestamp + 10, timestamp + 50, true)) {
+            assertEquals(stream.map(RawdataMessage::position).collect(Collectors.toList()), expected);
+        }
+        try (Stream<RawdataMessage> stream = avroClient.scan("the-topic", timestamp + 10, timestamp + 50, false)) {
+            assertEquals(stream.map(RawdataMessage::position).collect(Collectors.toSet()), Set.copyOf(expected));
+        }
+        try (Stream<RawdataMessage> stream = avroClient.scan("the-topic", timestamp + 100, timestamp + 200, true)) {
+            assertEquals(stream.count(), 0);
+        }
+    }
+
+    @Test
+    public void thatTimeRangeScanStreamsFilesOfManyChunks() throws Exception {
+        Map<String, String> largeFileConfiguration = new LinkedHashMap<>(configuration);
+        largeFileConfiguration.put("avro-file.max.bytes", Long.toString(1024 * 1024)); // 1 MiB
+        largeFileConfiguration.put("avro-file.max.seconds", "60");
+        try (AvroRawdataClient largeFileClient = (AvroRawdataClient) ProviderConfigurator.configure(largeFileConfiguration, "filesystem", RawdataClientInitializer.class)) {
+            ULID ulid = new ULID();
+            long timestamp = System.currentTimeMillis() - 10_000;
+            int count = 1025; // more than four scan chunks per file
+            for (int file = 0; file < 2; file++) {
+                try (RawdataProducer producer = largeFileClient.producer("the-topic")) {
+                    for (int i = 0; i < count; i++) {
+                        producer.publish(RawdataMessage.builder().ulid(ulid.nextValue(timestamp + 2 * i + file)).position(file + "-" + i).build());
+                    }
+                }
+            }
+            try (Stream<RawdataMessage> stream = largeFileClient.scan("the-topic", timestamp, timestamp + 2 * count, true)) {
+                List<String> positions = stream.map(RawdataMessage::position).collect(Collectors.toList());
+                assertEquals(positions.size(), 2 * count);
+                assertEquals(positions.get(0), "0-0");
+                assertEquals(positions.get(1), "1-0");
+                assertEquals(positions.get(2 * count - 1), "1-" + (count - 1));
+            }
+            try (Stream<RawdataMessage> stream = largeFileClient.scan("the-topic", timestamp, timestamp + 2 * count, false)) {
+                assertEquals(stream.count(), 2 * count);
+            }
+            try (Stream<RawdataMessage> stream = largeFileClient.scan("the-topic", timestamp, timestamp + 2 * count, true)) {
+                assertEquals(stream.limit(10).count(), 10); // files are closed with the stream
+            }
+        }
+    }
+
+    @Test
+    public void thatPublisherDeliversMessagesInOrderWithinDemand() throws Exception {
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            producer.publish(
+                    RawdataMessage.builder().position("a").put("payload", new byte[5]).build(),
+                    RawdataMessage.builder().position("b").put("payload", new byte[5]).build(),
+                    RawdataMessage.builder().position("c").put("payload", new byte[5]).build()
+            );
+        }
+        List<String> positions = new CopyOnWriteArrayList<>();
+        AtomicLong outstanding = new AtomicLong(0);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(6);
+        ((AvroRawdataClient) client).publisher("the-topic", null).subscribe(new Flow.Subscriber<>() {
+            Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                outstanding.addAndGet(2);
+                subscription.request(2);
+            }
+
+            @Override
+            public void onNext(RawdataMessage item) {
+                if (outstanding.decrementAndGet() < 0) {
+                    error.set(new IllegalStateException("Received more messages than requested"));
+                }
+                positions.add(item.position());
+                latch.countDown();
+                if (outstanding.get() == 0) {
+                    outstanding.addAndGet(2);
+                    subscription.request(2);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            producer.publish(
+                    RawdataMessage.builder().position("d").put("payload", new byte[5]).build(),
+                    RawdataMessage.builder().position("e").put("payload", new byte[5]).build(),
+                    RawdataMessage.builder().position("f").put("payload", new byte[5]).build()
+            );
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(positions, List.of("a", "b", "c", "d", "e", "f"));
+    }
+
+    @Test
+    public void thatConsumerWithCursorAtEndOnlyReceivesNewMessages() throws Exception {
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            producer.publish(
+                    RawdataMessage.builder().position("a").put("payload", new byte[5]).build(),
+                    RawdataMessage.builder().position("b").put("payload", new byte[5]).build()
+            );
+        }
+        AvroRawdataClient avroClient = (AvroRawdataClient) client;
+        try (RawdataConsumer consumer = avroClient.consumer("the-topic", avroClient.cursorAtEnd("the-topic"))) {
+            assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+            try (RawdataProducer producer = client.producer("the-topic")) {
+                producer.publish(RawdataMessage.builder().position("c").put("payload", new byte[5]).build());
+            }
+            assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "c");
+        }
+        try (RawdataConsumer consumer = avroClient.consumer("the-empty-topic", avroClient.cursorAtEnd("the-empty-topic"))) {
+            try (RawdataProducer producer = client.producer("the-empty-topic")) {
+                producer.publish(RawdataMessage.builder().position("a").put("payload", new byte[5]).build());
+            }
+            assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "a");
+        }
+        try {
+            avroClient.consumer("the-topic", avroClient.cursorAtEnd("the-empty-topic")).close();
+            fail("Expected cursor at end of another topic to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void thatPipelinedProducerWritesAllMessagesOfConcurrentPublishers() throws Exception {
+        Map<String, String> pipelinedConfiguration = new LinkedHashMap<>(configuration);
+        pipelinedConfiguration.put("avro-file.max.bytes", Long.toString(1024 * 1024)); // single file
+        pipelinedConfiguration.put("producer.pipeline.capacity", "16");
+        try (RawdataClient pipelinedClient = ProviderConfigurator.configure(pipelinedConfiguration, "filesystem", RawdataClientInitializer.class)) {
+            try (RawdataProducer producer = pipelinedClient.producer("the-topic")) {
+                List<CompletableFuture<Void>> publishers = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    String publisher = "p" + t;
+                    publishers.add(CompletableFuture.runAsync(() -> {
+                        for (int i = 0; i < 50; i++) {
+                            producer.publish(RawdataMessage.builder().position(publisher + "-" + i).put("payload", new byte[10]).build());
+                        }
+                    }));
+                }
+                CompletableFuture.allOf(publishers.toArray(new CompletableFuture[0])).join();
+                producer.publishAsync(RawdataMessage.builder().position("last").put("payload", new byte[10]).build()).join();
+            }
+            Map<String, Integer> nextIndexByPublisher = new LinkedHashMap<>();
+            try (RawdataConsumer consumer = pipelinedClient.consumer("the-topic")) {
+                for (int n = 0; n < 400; n++) {
+                    String[] position = consumer.receive(1, TimeUnit.SECONDS).position().split("-");
+                    int expectedIndex = nextIndexByPublisher.getOrDefault(position[0], 0);
+                    assertEquals(Integer.parseInt(position[1]), expectedIndex); // in publish order per publisher
+                    nextIndexByPublisher.put(position[0], expectedIndex + 1);
+                }
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "last");
+            }
+            assertEquals(nextIndexByPublisher.size(), 8);
+        }
+    }
+
+    @Test
+    public void thatAcknowledgedPublishCompletesWhenMessagesAreReadableBeforeProducerIsClosed() throws Exception {
+        AvroRawdataClient avroClient = (AvroRawdataClient) client;
+        try (ExtendedRawdataClient.Producer producer = avroClient.producer("the-topic")) {
+            List<CompletableFuture<Void>> acknowledgements = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                acknowledgements.add(producer.publishAcknowledged(RawdataMessage.builder().position("p" + i).put("payload", new byte[10]).build()));
+            }
+            CompletableFuture.allOf(acknowledgements.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            try (RawdataConsumer consumer = client.consumer("the-topic")) {
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "p" + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void thatAcknowledgedPublishOfPipelinedProducerCompletesWhenMessagesAreReadable() throws Exception {
+        Map<String, String> pipelinedConfiguration = new LinkedHashMap<>(configuration);
+        pipelinedConfiguration.put("producer.pipeline.capacity", "16");
+        try (AvroRawdataClient pipelinedClient = (AvroRawdataClient) ProviderConfigurator.configure(pipelinedConfiguration, "filesystem", RawdataClientInitializer.class)) {
+            try (ExtendedRawdataClient.Producer producer = pipelinedClient.producer("the-topic")) {
+                List<CompletableFuture<Void>> acknowledgements = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    acknowledgements.add(producer.publishAcknowledged(RawdataMessage.builder().position("p" + i).put("payload", new byte[10]).build()));
+                }
+                acknowledgements.add(producer.publishAcknowledged());
+                CompletableFuture.allOf(acknowledgements.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+                try (RawdataConsumer consumer = pipelinedClient.consumer("the-topic")) {
+                    for (int i = 0; i < 10; i++) {
+                        assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "p" + i);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void thatNoBlockExceedsSyncInterval() throws Exception {
+        Map<String, String> singleFileConfiguration = new LinkedHashMap<>(configuration);
+        singleFileConfiguration.put("avro-file.max.bytes", Long.toString(1024 * 1024)); // single file
+        try (RawdataClient singleFileClient = ProviderConfigurator.configure(singleFileConfiguration, "filesystem", RawdataClientInitializer.class)) {
+            try (RawdataProducer producer = singleFileClient.producer("the-topic")) {
+                for (int i = 0; i < 100; i++) {
+                    producer.publish(RawdataMessage.builder().position("p" + i).put("payload", new byte[10 + i % 50]).build());
+                }
+            }
+        }
+        List<Path> files;
+        try (Stream<Path> list = Files.list(Paths.get(configuration.get("filesystem.storage-folder"), "the-topic"))) {
+            files = list.filter(path -> path.getFileName().toString().endsWith(".avro")).collect(Collectors.toList());
+        }
+        assertEquals(files.size(), 1);
+        long messageCount = 0;
+        int blockCount = 0;
+        try (DataFileReader<GenericRecord> reader = new DataFileReader<>(files.get(0).toFile(), new GenericDatumReader<>())) {
+            while (reader.hasNext()) {
+                reader.nextBlock();
+                assertTrue(reader.getBlockSize() <= 200, "block size " + reader.getBlockSize());
+                messageCount += reader.getBlockCount();
+                blockCount++;
+            }
+        }
+        assertEquals(messageCount, 100);
+        assertTrue(blockCount > 1);
+    }
+
     @Test
     public void thatConsumerCanReadFromRightBeforeLast() throws Exception {
         try (RawdataProducer producer = client.producer("the-topic")) {
@@ -376,6 +822,20 @@ public class FilesystemAvroRawdataClientTck {
         assertNotNull(client.cursorOf("the-topic", "c", true, System.currentTimeMillis(), Duration.ofMinutes(1)));
     }
 
+    @Test
+    public void thatPositionCursorIsFoundAcrossManyFilesAndBlocks() throws Exception {
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 100; i++) {
+                producer.publish(RawdataMessage.builder().position("p" + i).put("payload", new byte[40]).build());
+            }
+        }
+        for (int i = 0; i < 100; i += 7) {
+            try (RawdataConsumer consumer = client.consumer("the-topic", "p" + i, true, System.currentTimeMillis(), Duration.ofMinutes(1))) {
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "p" + i);
+            }
+        }
+    }
+
     @Test(expectedExceptions = RawdataNoSuchPositionException.class)
     public void thatPositionCursorOfInvalidPositionIsNotFound() throws Exception {
         try (RawdataProducer producer = client.producer("the-topic")) {
@@ -435,6 +895,79 @@ public class FilesystemAvroRawdataClientTck {
         }
     }
 
+    @Test
+    public void thatMultipleFilesCanBeReadBackWithPrefetching() throws Exception {
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 100; i++) {
+                producer.publish(RawdataMessage.builder().position("a" + i)
+                        .put("payload", "ABC_".repeat(i).getBytes(StandardCharsets.UTF_8))
+                        .build());
+            }
+        }
+
+        Map<String, String> prefetchConfiguration = new LinkedHashMap<>(configuration);
+        prefetchConfiguration.put("consumer.prefetch.depth", "3");
+        prefetchConfiguration.put("consumer.prefetch.max-bytes", Long.toString(6 * 1024)); // 6 KiB, room for only some files
+        // both consumers prefetch within the one budget and executor of the client
+        try (RawdataClient prefetchingClient = ProviderConfigurator.configure(prefetchConfiguration, "filesystem", RawdataClientInitializer.class);
+             RawdataConsumer consumer = prefetchingClient.consumer("the-topic");
+             RawdataConsumer otherConsumer = prefetchingClient.consumer("the-topic")) {
+            for (int i = 0; i < 100; i++) {
+                for (RawdataConsumer c : List.of(consumer, otherConsumer)) {
+                    RawdataMessage msg = c.receive(1, TimeUnit.SECONDS);
+                    assertEquals(msg.position(), "a" + i);
+                    assertEquals(new String(msg.get("payload"), StandardCharsets.UTF_8), "ABC_".repeat(i));
+                }
+            }
+            assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+            assertNull(otherConsumer.receive(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void thatMessagesOfSameMillisecondAreNotSplitIntoFilesWithSameKey() throws Exception {
+        ULID ulid = new ULID();
+        long timestamp = System.currentTimeMillis();
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 4; i++) {
+                // above avro-file.max.bytes in total, all in the same millisecond
+                producer.publish(RawdataMessage.builder().ulid(ulid.nextValue(timestamp)).position("a" + i).put("payload", new byte[500]).build());
+            }
+            producer.publish(RawdataMessage.builder().ulid(ulid.nextValue(timestamp + 1)).position("b").put("payload", new byte[500]).build());
+        }
+        try (RawdataConsumer consumer = client.consumer("the-topic")) {
+            List<String> positions = new ArrayList<>();
+            RawdataMessage message;
+            while ((message = consumer.receive(100, TimeUnit.MILLISECONDS)) != null) {
+                positions.add(message.position());
+            }
+            assertEquals(positions.size(), 5);
+            assertEquals(positions.get(4), "b");
+        }
+    }
+
+    @Test
+    public void thatMessagesOfSameMillisecondAreWrittenToActiveFileBeyondMaxBytes() throws Exception {
+        ULID ulid = new ULID();
+        long timestamp = System.currentTimeMillis();
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            for (int i = 0; i < 20; i++) {
+                // far above avro-file.max.bytes in total, all in the same millisecond
+                producer.publish(RawdataMessage.builder().ulid(ulid.nextValue(timestamp)).position("a" + i).put("payload", new byte[500]).build());
+            }
+            producer.publish(RawdataMessage.builder().ulid(ulid.nextValue(timestamp + 1)).position("b").put("payload", new byte[500]).build());
+        }
+        NavigableMap<Long, RawdataAvroFile> files = new FilesystemRawdataUtils(Paths.get(configuration.get("filesystem.storage-folder"))).getTopicBlobs("the-topic");
+        assertEquals(files.size(), 2);
+        assertEquals((long) files.firstKey(), timestamp);
+        try (RawdataConsumer consumer = client.consumer("the-topic")) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "a" + i);
+            }
+            assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "b");
+        }
+    }
+
     @Test
     public void thatMultipleGCSFilesCanBeProducedThroughSizeBasedWindowingAndReadBack() throws Exception {
         try (RawdataProducer producer = client.producer("the-topic")) {
@@ -535,6 +1068,156 @@ public class FilesystemAvroRawdataClientTck {
         }
     }
 
+    @Test
+    public void thatFilesCreatedAfterConsumerHasSubscribedAreUsedWithIncrementalListing() throws Exception {
+        Map<String, String> incrementalConfiguration = new LinkedHashMap<>(configuration);
+        incrementalConfiguration.put("listing.incremental", "true");
+        try (RawdataClient incrementalClient = ProviderConfigurator.configure(incrementalConfiguration, "filesystem", RawdataClientInitializer.class)) {
+            try (RawdataProducer producer = incrementalClient.producer("the-topic")) {
+                producer.publish(RawdataMessage.builder().position("a").put("payload1", new byte[5]).build());
+            }
+            try (RawdataConsumer consumer = incrementalClient.consumer("the-topic")) {
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "a");
+                assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+                try (RawdataProducer producer = incrementalClient.producer("the-topic")) {
+                    producer.publish(RawdataMessage.builder().position("b").put("payload1", new byte[3]).build());
+                }
+                try (RawdataProducer producer = incrementalClient.producer("the-topic")) {
+                    producer.publish(RawdataMessage.builder().position("c").put("payload1", new byte[7]).build());
+                }
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "b");
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "c");
+                assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void thatFileOlderThanLookbackIsUsedAfterFullListingWithIncrementalListing() throws Exception {
+        Map<String, String> incrementalConfiguration = new LinkedHashMap<>(configuration);
+        incrementalConfiguration.put("listing.incremental", "true");
+        incrementalConfiguration.put("listing.full-interval-seconds", "1");
+        try (RawdataClient incrementalClient = ProviderConfigurator.configure(incrementalConfiguration, "filesystem", RawdataClientInitializer.class)) {
+            try (RawdataProducer producer = incrementalClient.producer("the-topic")) {
+                producer.publish(RawdataMessage.builder().position("b").put("payload1", new byte[5]).build());
+            }
+            try (RawdataConsumer consumer = incrementalClient.consumer("the-topic")) {
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "b");
+                // keyed ten minutes back, far beyond the look-back window of the incremental listing
+                ULID.Value oldUlid = new ULID().nextValue(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10));
+                try (RawdataProducer producer = incrementalClient.producer("the-topic")) {
+                    producer.publish(RawdataMessage.builder().ulid(oldUlid).position("a").put("payload1", new byte[3]).build());
+                }
+                Thread.sleep(1100);
+                // the listing is shared with the first consumer, so only a full listing can reveal the old file
+                try (RawdataConsumer fromStartConsumer = incrementalClient.consumer("the-topic")) {
+                    assertEquals(fromStartConsumer.receive(1, TimeUnit.SECONDS).position(), "a");
+                    assertEquals(fromStartConsumer.receive(1, TimeUnit.SECONDS).position(), "b");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void thatFileOfIdleProducerIsUploadedByNextPublishAfterWindowHasPassed() throws Exception {
+        try (RawdataProducer producer = client.producer("the-topic");
+             RawdataConsumer consumer = client.consumer("the-topic")) {
+            producer.publish(RawdataMessage.builder().position("a").put("payload1", new byte[5]).build());
+            assertNull(consumer.receive(3, TimeUnit.SECONDS)); // window is 2 seconds, plain publishes are not timed
+            producer.publish(RawdataMessage.builder().position("b").put("payload1", new byte[5]).build());
+            assertEquals(consumer.receive(5, TimeUnit.SECONDS).position(), "a");
+        }
+    }
+
+    static class CountingRawdataUtils implements AvroRawdataUtils {
+        final AvroRawdataUtils delegate;
+        final AtomicInteger listings = new AtomicInteger();
+
+        CountingRawdataUtils(AvroRawdataUtils delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public NavigableMap<Long, RawdataAvroFile> getTopicBlobs(String topic) {
+            listings.incrementAndGet();
+            return delegate.getTopicBlobs(topic);
+        }
+
+        @Override
+        public NavigableMap<Long, RawdataAvroFile> getTopicBlobsFrom(String topic, long fromTimestamp) {
+            listings.incrementAndGet();
+            return delegate.getTopicBlobsFrom(topic, fromTimestamp);
+        }
+
+        @Override
+        public AvroFileMetadata newAvrofileMetadata() {
+            return delegate.newAvrofileMetadata();
+        }
+    }
+
+    @Test
+    public void thatConsumersOfTopicShareListingUntilAllAreClosed() throws Exception {
+        try (RawdataProducer producer = client.producer("the-topic")) {
+            producer.publish(RawdataMessage.builder().position("a").put("payload1", new byte[5]).build());
+        }
+        Path storageFolder = Paths.get(configuration.get("filesystem.storage-folder"));
+        CountingRawdataUtils readOnlyUtils = new CountingRawdataUtils(new FilesystemRawdataUtils(storageFolder));
+        Map<String, String> countingConfiguration = new LinkedHashMap<>(configuration);
+        countingConfiguration.put("listing.min-interval-seconds", "60");
+        try (RawdataClient countingClient = new FilesystemRawdataClient(AvroRawdataClientSettings.of(countingConfiguration, ""), null,
+                readOnlyUtils, new FilesystemRawdataUtils(storageFolder), storageFolder)) {
+            try (RawdataConsumer consumer1 = countingClient.consumer("the-topic");
+                 RawdataConsumer consumer2 = countingClient.consumer("the-topic")) {
+                assertEquals(consumer1.receive(1, TimeUnit.SECONDS).position(), "a");
+                assertEquals(consumer2.receive(1, TimeUnit.SECONDS).position(), "a");
+                assertEquals(readOnlyUtils.listings.get(), 1);
+            }
+            // listing is dropped with the last consumer, a new consumer lists again and sees files added since
+            try (RawdataProducer producer = client.producer("the-topic")) {
+                producer.publish(RawdataMessage.builder().position("b").put("payload1", new byte[5]).build());
+            }
+            try (RawdataConsumer consumer = countingClient.consumer("the-topic")) {
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "a");
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).position(), "b");
+                assertEquals(readOnlyUtils.listings.get(), 2);
+            }
+        }
+    }
+
+    @Test
+    public void thatWaitingConsumerIsWokenUpByNewFile() throws Exception {
+        try (RawdataConsumer consumer = client.consumer("the-topic")) {
+            CompletableFuture<RawdataMessage> future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return consumer.receive(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Thread.sleep(200);
+            try (RawdataProducer producer = client.producer("the-topic")) {
+                producer.publish(RawdataMessage.builder().position("a").put("payload1", new byte[5]).build());
+            }
+            assertEquals(future.get(5, TimeUnit.SECONDS).position(), "a");
+        }
+    }
+
+    @Test
+    public void thatFilesCreatedAfterConsumerHasSubscribedAreUsedWithoutWatch() throws Exception {
+        Map<String, String> pollingConfiguration = new LinkedHashMap<>(configuration);
+        pollingConfiguration.put("filesystem.watch", "false");
+        try (RawdataClient pollingClient = ProviderConfigurator.configure(pollingConfiguration, "filesystem", RawdataClientInitializer.class)) {
+            try (RawdataConsumer consumer = pollingClient.consumer("the-topic")) {
+                assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+                try (RawdataProducer producer = pollingClient.producer("the-topic")) {
+                    producer.publish(RawdataMessage.builder().position("a").put("payload1", new byte[5]).build());
+                }
+                assertEquals(consumer.receive(2, TimeUnit.SECONDS).position(), "a");
+                assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
     @Test
     public void thatNonExistentStreamCanBeConsumedFirstAndProducedAfter() throws Exception {
         Thread consumerThread = new Thread(() -> {
@@ -589,6 +1272,7 @@ public class FilesystemAvroRawdataClientTck {
 
         RawdataMessage lastMessage = client.lastMessage("the-topic");
         assertEquals(lastMessage.position(), "i");
+        assertSame(client.lastMessage("the-topic"), lastMessage); // last file has not changed
     }
 
     @Test
@@ -601,6 +1285,31 @@ public class FilesystemAvroRawdataClientTck {
         assertEquals(lastMessage.position(), "a");
     }
 
+    @Test
+    public void thatFileRewrittenAtSamePathIsNotReadWithCachedState() throws Exception {
+        ULID.Value ulid = new ULID().nextValue();
+        Path topicFolder = Paths.get(configuration.get("filesystem.storage-folder")).resolve("the-topic");
+        for (byte value : new byte[]{1, 2}) {
+            if (value == 2) {
+                Thread.sleep(20); // let the modification time of the re-written file differ
+                try (Stream<Path> files = Files.list(topicFolder)) {
+                    for (Path file : files.collect(Collectors.toList())) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            byte[] payload = new byte[10];
+            Arrays.fill(payload, value);
+            try (RawdataProducer producer = client.producer("the-topic")) {
+                producer.publish(RawdataMessage.builder().ulid(ulid).position("a").put("payload", payload).build());
+            }
+            assertEquals(client.lastMessage("the-topic").get("payload"), payload);
+            try (RawdataConsumer consumer = client.consumer("the-topic", ulid, true)) {
+                assertEquals(consumer.receive(1, TimeUnit.SECONDS).get("payload"), payload);
+            }
+        }
+    }
+
     @Test
     public void thatMetadataCanBeWrittenListedAndRead() {
         RawdataMetadataClient metadata = client.metadata("the-topic");